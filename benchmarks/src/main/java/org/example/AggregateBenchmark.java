@@ -0,0 +1,124 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Range aggregates over one fully populated numeric column: full scans, and edits inside a range that
+// formulas read, which update its running aggregates instead
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregateBenchmark {
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    private Spreadsheet spreadsheet;
+    private FormulaNode sum;
+    private FormulaNode min;
+    private FormulaNode mean;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        spreadsheet = new Spreadsheet();
+        for (int row = 0; row < rows; row++) {
+            spreadsheet.setCellContent(new Coordinate(row, 0), new NumericContent(row % 1000));
+        }
+        sum = FormulaParser.parse("=SUMA(A1:A" + rows + ")");
+        min = FormulaParser.parse("=MIN(A1:A" + rows + ")");
+        mean = FormulaParser.parse("=PROMEDIO(A1:A" + rows + ")");
+    }
+
+    @Benchmark
+    public double suma() {
+        return sum.evaluate(spreadsheet);
+    }
+
+    @Benchmark
+    public double min() {
+        return min.evaluate(spreadsheet);
+    }
+
+    @Benchmark
+    public double promedio() {
+        return mean.evaluate(spreadsheet);
+    }
+
+    @State(Scope.Thread)
+    public static class ReadRange {
+        @Param({"100000", "1000000"})
+        public int rows;
+
+        Spreadsheet spreadsheet;
+        Coordinate member;
+        double value;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            spreadsheet = new Spreadsheet();
+            for (int row = 0; row < rows; row++) {
+                spreadsheet.setCellContent(new Coordinate(row, 0), new NumericContent(row % 1000));
+            }
+            spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=SUMA(A1:A" + rows + ")")));
+            spreadsheet.setCellContent("B2", new FormulaContent(FormulaParser.parse("=MAX(A1:A" + rows + ")")));
+            member = new Coordinate(rows / 2, 0);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int editInsideRange(ReadRange state) {
+        state.value++;
+        state.spreadsheet.setCellContent(state.member, new NumericContent(state.value % 1000));
+        return state.spreadsheet.getLastRecalculationCount();
+    }
+
+    // Ranges far wider than one bucket of the range index, sixteen columns by every row, each read by its own
+    // formula: what registering such a range costs, and what an edit under many of them costs
+    @State(Scope.Thread)
+    public static class WideRanges {
+        static final int FORMULAS = 100;
+
+        @Param({"100000", "1000000"})
+        public int rows;
+
+        Spreadsheet spreadsheet;
+        Coordinate member;
+        double value;
+        int registered;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            spreadsheet = new Spreadsheet();
+            for (int row = 0; row < rows; row++) {
+                spreadsheet.setCellContent(new Coordinate(row, 0), new NumericContent(row % 1000));
+            }
+            for (int i = 0; i < FORMULAS; i++) {
+                spreadsheet.setCellContent(new Coordinate(i, 20), new FormulaContent(FormulaParser.parse("=SUMA(A1:P" + (rows - i) + ")")));
+            }
+            member = new Coordinate(rows / 2, 0);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int editUnderWideRanges(WideRanges state) {
+        state.value++;
+        state.spreadsheet.setCellContent(state.member, new NumericContent(state.value % 1000));
+        return state.spreadsheet.getLastRecalculationCount();
+    }
+
+    // Replaces one formula by another reading a different wide range, unregistering the old range. The ranges
+    // lie over empty columns, so registering them is most of the cost rather than scanning them
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int registerWideRange(WideRanges state) {
+        state.registered++;
+        int lastRow = state.rows - state.registered % 2;
+        state.spreadsheet.setCellContent(new Coordinate(0, 21), new FormulaContent(FormulaParser.parse("=SUMA(AA1:AP" + lastRow + ")")));
+        return state.spreadsheet.getLastRecalculationCount();
+    }
+}
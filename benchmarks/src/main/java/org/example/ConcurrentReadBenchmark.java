@@ -0,0 +1,84 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Consistent reads of a ConcurrentSpreadsheet while one writer keeps editing the column its formulas sum.
+// Each group runs the writer next to one, two or four readers, so the reader scores show how optimistic
+// reads scale with the number of readers under a steady stream of writes
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentReadBenchmark {
+    private static final int ROWS = 100;
+    private static final Coordinate SUM = Coordinate.parse("B1");
+    private static final Coordinate DOUBLED = Coordinate.parse("C1");
+
+    private ConcurrentSpreadsheet spreadsheet;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        spreadsheet = new ConcurrentSpreadsheet();
+        for (int row = 0; row < ROWS; row++) {
+            spreadsheet.setCellContent(new Coordinate(row, 0), new NumericContent(row));
+        }
+        spreadsheet.setCellContent(SUM, new FormulaContent(FormulaParser.parse("=SUMA(A1:A" + ROWS + ")")));
+        spreadsheet.setCellContent(DOUBLED, new FormulaContent(FormulaParser.parse("=B1*2")));
+    }
+
+    @Benchmark
+    @Group("oneReader")
+    @GroupThreads(1)
+    public double[] oneReader() {
+        return read();
+    }
+
+    @Benchmark
+    @Group("oneReader")
+    @GroupThreads(1)
+    public void oneReaderWriter() {
+        write();
+    }
+
+    @Benchmark
+    @Group("twoReaders")
+    @GroupThreads(2)
+    public double[] twoReaders() {
+        return read();
+    }
+
+    @Benchmark
+    @Group("twoReaders")
+    @GroupThreads(1)
+    public void twoReadersWriter() {
+        write();
+    }
+
+    @Benchmark
+    @Group("fourReaders")
+    @GroupThreads(4)
+    public double[] fourReaders() {
+        return read();
+    }
+
+    @Benchmark
+    @Group("fourReaders")
+    @GroupThreads(1)
+    public void fourReadersWriter() {
+        write();
+    }
+
+    private double[] read() {
+        return spreadsheet.getValues(SUM, DOUBLED);
+    }
+
+    private void write() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        spreadsheet.setCellContent(new Coordinate(random.nextInt(ROWS), 0), new NumericContent(random.nextInt(1000)));
+    }
+}
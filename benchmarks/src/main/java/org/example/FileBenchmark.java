@@ -0,0 +1,51 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Saving and loading a generated workbook in each file format
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileBenchmark {
+    @Param({"CHAIN", "FAN_IN", "SPARSE"})
+    public WorkbookGenerator shape;
+
+    @Param({"10000"})
+    public int size;
+
+    @Param({".s2v", SpreadsheetFileManager.BINARY_EXTENSION})
+    public String extension;
+
+    private Spreadsheet spreadsheet;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        spreadsheet = shape.generate(size);
+        file = File.createTempFile("workbook-benchmark", extension);
+        SpreadsheetFileManager.saveSpreadsheet(spreadsheet, file.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public File save() throws IOException {
+        SpreadsheetFileManager.saveSpreadsheet(spreadsheet, file.getPath());
+        return file;
+    }
+
+    @Benchmark
+    public Spreadsheet load() throws IOException {
+        return SpreadsheetFileManager.loadSpreadsheet(file.getPath());
+    }
+}
@@ -0,0 +1,21 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({"=A1+B2*3", "=(A1+B1)*(C1-D1)/2", "=SUMA(A1:A1000)", "=MAX(A1;B2;C3)+PROMEDIO(A1:C3)"})
+    public String formula;
+
+    @Benchmark
+    public Object parse() {
+        return FormulaParser.parse(formula);
+    }
+}
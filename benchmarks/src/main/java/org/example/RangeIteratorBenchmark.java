@@ -0,0 +1,52 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Walks a 26 column range in which only every n-th row holds a value
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RangeIteratorBenchmark {
+    @Param({"1000", "10000"})
+    public int rows;
+
+    @Param({"1", "16"})
+    public int stride;
+
+    private Spreadsheet spreadsheet;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        spreadsheet = new Spreadsheet();
+        for (int row = 1; row <= rows; row += stride) {
+            for (char col = 'A'; col <= 'Z'; col++) {
+                spreadsheet.setCellContent(String.valueOf(col) + row, new NumericContent(row));
+            }
+        }
+    }
+
+    @Benchmark
+    public int iterate() {
+        int visited = 0;
+        RangeIterator iterator = new RangeIterator("A1", "Z" + rows, spreadsheet);
+        while (iterator.next()) {
+            visited++;
+        }
+        return visited;
+    }
+
+    @Benchmark
+    public double sum() {
+        double total = 0;
+        RangeIterator iterator = new RangeIterator("A1", "Z" + rows, spreadsheet);
+        while (iterator.next()) {
+            total += iterator.getValue();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,42 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of one edit of the root cell, and of recalculating its dependents alone, per workbook shape
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecalculationBenchmark {
+    @Param({"CHAIN", "FAN_IN", "DIAMOND", "SPARSE"})
+    public WorkbookGenerator shape;
+
+    @Param({"1000", "10000"})
+    public int size;
+
+    private Spreadsheet spreadsheet;
+    private Cell root;
+    private double value;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        spreadsheet = shape.generate(size);
+        root = spreadsheet.getCell(WorkbookGenerator.ROOT);
+    }
+
+    @Benchmark
+    public int setCellContent() {
+        value++;
+        spreadsheet.setCellContent(WorkbookGenerator.ROOT, new NumericContent(value));
+        return spreadsheet.getLastRecalculationCount();
+    }
+
+    @Benchmark
+    public int updateDependents() {
+        return root.updateDependents(spreadsheet);
+    }
+}
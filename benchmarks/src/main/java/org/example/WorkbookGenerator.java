@@ -0,0 +1,72 @@
+package org.example;
+
+// Builds synthetic workbooks with the dependency shapes the benchmarks exercise. Every shape has one
+// numeric root cell that feeds all of its formulas, so editing the root recalculates the whole shape.
+public enum WorkbookGenerator {
+    // A1 <- A2 <- A3 ... every formula reads the one above it
+    CHAIN {
+        @Override
+        void populate(Spreadsheet spreadsheet, int size) {
+            spreadsheet.setCellContent("A1", new NumericContent(1.0));
+            for (int row = 2; row <= size; row++) {
+                spreadsheet.setCellContent("A" + row, formula("=A" + (row - 1) + "+1"));
+            }
+        }
+    },
+    // One column of numbers summed by a single SUMA over the whole range, plus one formula per row
+    FAN_IN {
+        @Override
+        void populate(Spreadsheet spreadsheet, int size) {
+            for (int row = 1; row <= size; row++) {
+                spreadsheet.setCellContent("A" + row, new NumericContent(row));
+            }
+            spreadsheet.setCellContent("B1", formula("=SUMA(A1:A" + size + ")"));
+            spreadsheet.setCellContent("C1", formula("=PROMEDIO(A1:A" + size + ";B1)"));
+        }
+    },
+    // Each level fans out into two formulas that join again, doubling the paths per level
+    DIAMOND {
+        @Override
+        void populate(Spreadsheet spreadsheet, int size) {
+            spreadsheet.setCellContent("A1", new NumericContent(1.0));
+            for (int row = 2; row <= size / 3 + 1; row++) {
+                int previous = row - 1;
+                spreadsheet.setCellContent("B" + row, formula("=A" + previous + "+1"));
+                spreadsheet.setCellContent("C" + row, formula("=A" + previous + "-1"));
+                spreadsheet.setCellContent("A" + row, formula("=(B" + row + "+C" + row + ")/2"));
+            }
+        }
+    },
+    // Cells scattered far apart over a large sheet, every formula reads the root and its far neighbour
+    SPARSE {
+        @Override
+        void populate(Spreadsheet spreadsheet, int size) {
+            spreadsheet.setCellContent("A1", new NumericContent(1.0));
+            String previous = "A1";
+            for (int i = 1; i < size; i++) {
+                String coordinate = Coordinate.columnName((i * 37) % 702) + (i * 1009 + 1);
+                spreadsheet.setCellContent(coordinate, formula("=" + previous + "+A1"));
+                previous = coordinate;
+            }
+        }
+    };
+
+    public static final String ROOT = "A1";
+
+    abstract void populate(Spreadsheet spreadsheet, int size);
+
+    // Returns a new workbook of roughly the given number of cells
+    public Spreadsheet generate(int size) {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        populate(spreadsheet, size);
+        return spreadsheet;
+    }
+
+    private static FormulaContent formula(String text) {
+        FormulaNode root = FormulaParser.parse(text);
+        if (root == null) {
+            throw new IllegalStateException("Generator produced an invalid formula: " + text);
+        }
+        return new FormulaContent(root);
+    }
+}
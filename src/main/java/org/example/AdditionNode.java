@@ -2,29 +2,43 @@ package org.example;
 import java.util.List;
 
 class AdditionNode extends FormulaNode {
+    private final boolean function; // Written as SUMA(...) instead of an infix sum
 
     public AdditionNode(List<FormulaNode> children) {
+        this(children, false);
+    }
+
+    public AdditionNode(List<FormulaNode> children, boolean function) {
         super(children);
+        this.function = function;
+    }
+
+    public boolean isFunction() {
+        return function;
     }
 
     @Override
-    public double evaluate(Spreadsheet spreadsheet) {
-        double sum = 0;
+    public double evaluate(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
+        RangeAggregate sum = new RangeAggregate(RangeAggregate.SUM);
         for (FormulaNode child : getChildren()) {
-            sum += child.evaluate(spreadsheet); // Evaluate each child and add to the sum
+            if (child instanceof RangeNode range) {
+                sum.addRange(spreadsheet, range, anchorRow, anchorCol);
+            } else {
+                sum.add(child.evaluate(spreadsheet, anchorRow, anchorCol));
+            }
         }
-        return sum;
+        return sum.getResult();
     }
 
     @Override
-    public String toString() {
-        StringBuilder result = new StringBuilder("(");
+    public String toString(int anchorRow, int anchorCol) {
+        StringBuilder result = new StringBuilder(function ? "SUMA(" : "(");
         List<FormulaNode> children = getChildren();
 
         for (int i = 0; i < children.size(); i++) {
-            result.append(children.get(i).toString());
+            result.append(children.get(i).toString(anchorRow, anchorCol));
             if (i < children.size() - 1) {
-                result.append(" + ");
+                result.append(function ? ", " : " + ");
             }
         }
 
@@ -0,0 +1,481 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Versioned binary workbook format, written and read through NIO channels. Sections in file order:
+//   header    magic, version
+//   strings   every text and error message once, cells refer to them by index
+//   numbers   columnar block of rows, columns and values
+//   texts     rows, columns and string indexes
+//   formulas  position, pre-tokenised tree and cached result of each formula
+//   graph     cells and ranges referenced by each formula, wired on load without walking the trees
+// Formulas whose cached result was saved are restored as clean, so loading needs no recalculation.
+class BinaryWorkbookFormat {
+    static final int MAGIC = 0x53324221; // "S2B!"
+    static final short VERSION = 1;
+
+    // Cached result of a formula
+    private static final byte RESULT_PENDING = 0;
+    private static final byte RESULT_NUMBER = 1;
+    private static final byte RESULT_ERROR = 2;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public static boolean isBinary(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+            while (header.hasRemaining() && channel.read(header) > 0) {
+                // Keep reading until the magic number is complete or the file ends
+            }
+            return !header.hasRemaining() && header.getInt(0) == MAGIC;
+        }
+    }
+
+    public static void write(Spreadsheet spreadsheet, Path path) throws IOException {
+        write(spreadsheet.snapshot(), path);
+    }
+
+    // Pending formulas are saved without a result and evaluated on load. The snapshot is streamed twice, a
+    // block of the sheet at a time: the first pass counts the cells of each section and sizes the formulas,
+    // so every section's offset is known, and the second writes each column of each section through a
+    // buffer of its own at that offset. Nothing but the string table is held in memory
+    public static void write(SpreadsheetSnapshot snapshot, Path path) throws IOException {
+        Map<String, Integer> strings = new HashMap<>();
+        List<String> stringTable = new ArrayList<>();
+        long[] sizes = new long[4]; // Numbers, texts, formulas, bytes of the formulas section
+        snapshot.forEachCell((row, col, cell) -> {
+            Content content = cell.content();
+            if (content instanceof NumericContent) {
+                sizes[0]++;
+            } else if (content instanceof FormulaContent formulaContent) {
+                sizes[2]++;
+                sizes[3] += 2 * Integer.BYTES + FormulaTrees.size(formulaContent.getRoot()) + resultSize(cell);
+                if (cell.state() == Cell.ValueState.ERROR) {
+                    intern(errorText(cell), strings, stringTable);
+                }
+            } else if (!cell.isEmpty()) {
+                sizes[1]++;
+                intern(content.toString(), strings, stringTable);
+            }
+        });
+        int numberCount = Math.toIntExact(sizes[0]);
+        int textCount = Math.toIntExact(sizes[1]);
+        int formulaCount = Math.toIntExact(sizes[2]);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel, 0);
+            out.putInt(MAGIC);
+            out.putShort(VERSION);
+            out.putInt(stringTable.size());
+            for (String string : stringTable) {
+                out.putBytes(string.getBytes(StandardCharsets.UTF_8));
+            }
+            out.putInt(numberCount);
+            long numbersAt = out.position();
+            long textsAt = numbersAt + (long) numberCount * (2 * Integer.BYTES + Double.BYTES);
+            long formulasAt = textsAt + Integer.BYTES + (long) textCount * 3 * Integer.BYTES;
+            long graphAt = formulasAt + Integer.BYTES + sizes[3];
+            out.flush();
+
+            Output numberRows = new Output(channel, numbersAt);
+            Output numberCols = new Output(channel, numbersAt + (long) numberCount * Integer.BYTES);
+            Output numberValues = new Output(channel, numbersAt + (long) numberCount * 2 * Integer.BYTES);
+            Output textHeader = new Output(channel, textsAt);
+            textHeader.putInt(textCount);
+            textHeader.flush();
+            Output textRows = new Output(channel, textsAt + Integer.BYTES);
+            Output textCols = new Output(channel, textsAt + Integer.BYTES + (long) textCount * Integer.BYTES);
+            Output textStrings = new Output(channel, textsAt + Integer.BYTES + (long) textCount * 2 * Integer.BYTES);
+            Output formulas = new Output(channel, formulasAt);
+            formulas.putInt(formulaCount);
+            Output graph = new Output(channel, graphAt);
+            try {
+                snapshot.forEachCell((row, col, cell) -> {
+                    try {
+                        Content content = cell.content();
+                        if (content instanceof NumericContent) {
+                            numberRows.putInt(row);
+                            numberCols.putInt(col);
+                            numberValues.putDouble(cell.value());
+                        } else if (content instanceof FormulaContent formulaContent) {
+                            formulas.putInt(row);
+                            formulas.putInt(col);
+                            writeNode(formulaContent.getRoot(), formulaContent.getAnchorRow(), formulaContent.getAnchorCol(), formulas);
+                            writeResult(cell, strings, formulas);
+                            writeDependencies(formulaContent, graph);
+                        } else if (!cell.isEmpty()) {
+                            textRows.putInt(row);
+                            textCols.putInt(col);
+                            textStrings.putInt(strings.get(content.toString()));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            for (Output section : List.of(numberRows, numberCols, numberValues, textRows, textCols, textStrings, formulas, graph)) {
+                section.flush();
+            }
+        }
+    }
+
+    private static int resultSize(CellSnapshot cell) {
+        if (cell.state() == Cell.ValueState.PENDING) {
+            return Byte.BYTES;
+        } else if (cell.state() == Cell.ValueState.ERROR) {
+            return Byte.BYTES + Integer.BYTES;
+        }
+        return Byte.BYTES + Double.BYTES;
+    }
+
+    // The file is read through a buffer on the heap, so nothing stays mapped once it is loaded. Counts and
+    // lengths are checked against the bytes left before anything is allocated for them, and a file that is
+    // truncated or does not decode is reported as an IOException naming it
+    public static Spreadsheet read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Input in = new Input(channel);
+            if (in.remaining() < Integer.BYTES + Short.BYTES || in.getInt() != MAGIC) {
+                throw new IOException("Not a binary workbook: " + path);
+            }
+            short version = in.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported workbook version " + version + ": " + path);
+            }
+            try {
+                Spreadsheet spreadsheet = readSections(in);
+                if (in.remaining() > 0) {
+                    throw new IOException(in.remaining() + " unexpected bytes after the last section");
+                }
+                return spreadsheet;
+            } catch (IOException | RuntimeException e) {
+                throw new IOException("Cannot read binary workbook " + path + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static Spreadsheet readSections(Input in) throws IOException {
+        String[] strings = new String[in.getCount(Integer.BYTES)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = new String(in.getBytes(in.getCount(Byte.BYTES)), StandardCharsets.UTF_8);
+        }
+
+        Spreadsheet spreadsheet = new Spreadsheet();
+        int[][] positions = readPositions(in, Double.BYTES);
+        for (int i = 0; i < positions[0].length; i++) {
+            spreadsheet.storeCellContent(positions[0][i], positions[1][i], new NumericContent(in.getDouble()));
+        }
+
+        positions = readPositions(in, Integer.BYTES);
+        for (int i = 0; i < positions[0].length; i++) {
+            spreadsheet.storeCellContent(positions[0][i], positions[1][i], new TextContent(string(strings, in.getInt())));
+        }
+
+        // Position, a one-byte tree and a result tag at the least, then two counts in the graph section
+        Cell[] formulaCells = new Cell[in.getCount(4 * Integer.BYTES + 2 * Byte.BYTES)];
+        List<Cell> pending = new ArrayList<>();
+        for (int i = 0; i < formulaCells.length; i++) {
+            int row = in.getInt();
+            int col = in.getInt();
+            FormulaContent formulaContent = new FormulaContent(readNode(in));
+            Cell cell = spreadsheet.storeCellContent(row, col, formulaContent);
+            byte result = in.getByte();
+            if (result == RESULT_NUMBER) {
+                cell.setValue(in.getDouble());
+                formulaContent.markValid(spreadsheet.getRecalculationEpoch());
+                spreadsheet.valueChanged(cell, Cell.ValueState.PENDING, 0);
+            } else if (result == RESULT_ERROR) {
+                String error = string(strings, in.getInt());
+                cell.setError(error.isEmpty() ? null : error);
+                formulaContent.markValid(spreadsheet.getRecalculationEpoch());
+                spreadsheet.valueChanged(cell, Cell.ValueState.PENDING, 0);
+            } else if (result == RESULT_PENDING) {
+                pending.add(cell);
+            } else {
+                throw new IOException("Unknown formula result tag " + result);
+            }
+            formulaCells[i] = cell;
+        }
+
+        for (Cell cell : formulaCells) {
+            int precedents = in.getCount(2 * Integer.BYTES);
+            for (int i = 0; i < precedents; i++) {
+                spreadsheet.addStoredDependency(in.getInt(), in.getInt(), cell);
+            }
+            int ranges = in.getCount(4 * Integer.BYTES);
+            for (int i = 0; i < ranges; i++) {
+                spreadsheet.addStoredRangeDependency(readRange(in), cell);
+            }
+        }
+
+        spreadsheet.recalculate(pending);
+        return spreadsheet;
+    }
+
+    private static String string(String[] strings, int index) throws IOException {
+        if (index < 0 || index >= strings.length) {
+            throw new IOException("String index " + index + " out of a table of " + strings.length);
+        }
+        return strings[index];
+    }
+
+    // An error without a message is stored as the empty string, and read back as one without a message
+    private static String errorText(CellSnapshot cell) {
+        return cell.error() == null ? "" : cell.error();
+    }
+
+    private static void intern(String string, Map<String, Integer> strings, List<String> stringTable) {
+        if (!strings.containsKey(string)) {
+            strings.put(string, stringTable.size());
+            stringTable.add(string);
+        }
+    }
+
+    private static void writeResult(CellSnapshot cell, Map<String, Integer> strings, Output out) throws IOException {
+        if (cell.state() == Cell.ValueState.PENDING) {
+            out.putByte(RESULT_PENDING);
+        } else if (cell.state() == Cell.ValueState.ERROR) {
+            out.putByte(RESULT_ERROR);
+            out.putInt(strings.get(errorText(cell)));
+        } else {
+            out.putByte(RESULT_NUMBER);
+            out.putDouble(cell.value());
+        }
+    }
+
+    private static void writeDependencies(FormulaContent formulaContent, Output out) throws IOException {
+        Set<Coordinate> dependencies = new LinkedHashSet<>();
+        List<RangeNode> ranges = new ArrayList<>();
+        Spreadsheet.collectDependencies(formulaContent, dependencies, ranges);
+        out.putInt(dependencies.size());
+        for (Coordinate coordinate : dependencies) {
+            out.putInt(coordinate.row());
+            out.putInt(coordinate.col());
+        }
+        out.putInt(ranges.size());
+        for (RangeNode range : ranges) {
+            writeRange(range, out);
+        }
+    }
+
+    // The FormulaTrees encoding, streamed through the section's buffer
+    private static void writeNode(FormulaNode node, int anchorRow, int anchorCol, Output out) throws IOException {
+        if (node instanceof ValueNode valueNode) {
+            out.putByte(FormulaTrees.VALUE);
+            out.putDouble(valueNode.getValue());
+            return;
+        } else if (node instanceof CellNode cellNode) {
+            out.putByte(FormulaTrees.CELL);
+            out.putInt(cellNode.getRow(anchorRow));
+            out.putInt(cellNode.getCol(anchorCol));
+            return;
+        } else if (node instanceof RangeNode rangeNode) {
+            out.putByte(FormulaTrees.RANGE);
+            writeRange(rangeNode.resolve(anchorRow, anchorCol), out);
+            return;
+        }
+
+        out.putByte(FormulaTrees.tagOf(node));
+        out.putInt(node.getChildren().size());
+        for (FormulaNode child : node.getChildren()) {
+            writeNode(child, anchorRow, anchorCol, out);
+        }
+    }
+
+    private static FormulaNode readNode(Input in) throws IOException {
+        byte tag = in.getByte();
+        switch (tag) {
+            case FormulaTrees.VALUE:
+                return new ValueNode(in.getDouble());
+            case FormulaTrees.CELL:
+                return new CellNode(new Coordinate(in.getInt(), in.getInt()));
+            case FormulaTrees.RANGE:
+                return readRange(in);
+            default:
+                break;
+        }
+
+        List<FormulaNode> children = new ArrayList<>(Arrays.asList(new FormulaNode[in.getCount(Byte.BYTES)]));
+        for (int i = 0; i < children.size(); i++) {
+            children.set(i, readNode(in));
+        }
+        return FormulaTrees.operation(tag, children);
+    }
+
+    private static void writeRange(RangeNode range, Output out) throws IOException {
+        out.putInt(range.getStartRow());
+        out.putInt(range.getStartCol());
+        out.putInt(range.getEndRow());
+        out.putInt(range.getEndCol());
+    }
+
+    private static RangeNode readRange(Input in) throws IOException {
+        Coordinate start = new Coordinate(in.getInt(), in.getInt());
+        Coordinate end = new Coordinate(in.getInt(), in.getInt());
+        return new RangeNode(start, end);
+    }
+
+    // Each position is followed later in the section by a value of the given size
+    private static int[][] readPositions(Input in, int valueBytes) throws IOException {
+        int count = in.getCount(2 * Integer.BYTES + valueBytes);
+        int[] rows = new int[count];
+        int[] cols = new int[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = in.getInt();
+        }
+        for (int i = 0; i < count; i++) {
+            cols[i] = in.getInt();
+        }
+        return new int[][]{rows, cols};
+    }
+
+    // Buffered reads from a channel into a heap buffer, failing on a read past the end of the file
+    private static class Input {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long remaining;
+
+        Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.remaining = channel.size();
+            buffer.limit(0);
+        }
+
+        // Bytes of the file not read yet
+        long remaining() {
+            return remaining;
+        }
+
+        byte getByte() throws IOException {
+            return ensure(Byte.BYTES).get();
+        }
+
+        short getShort() throws IOException {
+            return ensure(Short.BYTES).getShort();
+        }
+
+        int getInt() throws IOException {
+            return ensure(Integer.BYTES).getInt();
+        }
+
+        double getDouble() throws IOException {
+            return ensure(Double.BYTES).getDouble();
+        }
+
+        // A count of items taking at least the given bytes each, which the rest of the file must be able to hold
+        int getCount(int itemBytes) throws IOException {
+            int count = getInt();
+            if (count < 0 || (long) count * itemBytes > remaining) {
+                throw new IOException("Count " + count + " does not fit in the " + remaining + " bytes left");
+            }
+            return count;
+        }
+
+        byte[] getBytes(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int chunk = Math.min(length - offset, buffer.capacity());
+                ensure(chunk).get(bytes, offset, chunk);
+                offset += chunk;
+            }
+            return bytes;
+        }
+
+        private ByteBuffer ensure(int bytes) throws IOException {
+            if (bytes > remaining) {
+                throw new IOException("File ends " + (bytes - remaining) + " bytes short");
+            }
+            if (buffer.remaining() < bytes) {
+                buffer.compact();
+                while (buffer.position() < bytes) {
+                    if (channel.read(buffer) < 0) {
+                        throw new IOException("File ends before its size was read");
+                    }
+                }
+                buffer.flip();
+            }
+            remaining -= bytes;
+            return buffer;
+        }
+    }
+
+    // Buffered writes to a channel from a position on, so several sections can be written side by side
+    private static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long position;
+
+        Output(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        // Where the next byte goes
+        long position() {
+            return position + buffer.position();
+        }
+
+        void putByte(byte value) throws IOException {
+            ensure(Byte.BYTES).put(value);
+        }
+
+        void putShort(short value) throws IOException {
+            ensure(Short.BYTES).putShort(value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES).putInt(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            ensure(Double.BYTES).putDouble(value);
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            putInt(bytes.length);
+            if (bytes.length > buffer.remaining()) {
+                flush();
+                if (bytes.length > buffer.capacity()) {
+                    writeFully(ByteBuffer.wrap(bytes));
+                    return;
+                }
+            }
+            buffer.put(bytes);
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private ByteBuffer ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+            return buffer;
+        }
+
+        private void writeFully(ByteBuffer source) throws IOException {
+            while (source.hasRemaining()) {
+                position += channel.write(source, position);
+            }
+        }
+    }
+}
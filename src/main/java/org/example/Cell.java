@@ -1,21 +1,52 @@
 package org.example;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 public class Cell {
-    private String coordinate;
+    // Kind of value held in the primitive value slot
+    enum ValueState {
+        EMPTY,
+        NUMBER,
+        TEXT,
+        ERROR,
+        PENDING // Formula that has not been evaluated yet
+    }
+
+    private static final TextContent EMPTY_CONTENT = new TextContent("");
+
+    // Shared read-only view returned for coordinates that hold no cell, so empty reads never allocate
+    static final Cell EMPTY = new Cell(null) {
+        @Override
+        public void setContent(Content content) {
+            throw new UnsupportedOperationException("Cannot modify an empty cell view.");
+        }
+
+        @Override
+        public void addDependent(Cell dependent) {
+            throw new UnsupportedOperationException("Cannot modify an empty cell view.");
+        }
+    };
+
+    private final Coordinate coordinate; // Null for the empty view
     private Content content;
     private FormulaContent Formula;
-    private List<Cell> dependents;
+    // Typed value slot read by formula evaluation, formatted to text only when displayed
+    private double value;
+    private ValueState state;
+    private String error;
+    // Both directions of the dependency graph, created on first use since most cells have neither
+    private Set<Cell> dependents;
+    private Set<Cell> precedents;
 
-    public Cell(String coordinate) {
+    public Cell(Coordinate coordinate) {
         this.coordinate = coordinate;
-        this.content = new TextContent(""); // default empty text content
-        this.dependents = new ArrayList<>();
+        this.content = EMPTY_CONTENT; // default empty text content
+        this.state = ValueState.EMPTY;
     }
 
-    public String getCoordinate() {
+    public Coordinate getCoordinate() {
         return coordinate;
     }
 
@@ -28,39 +59,142 @@ public class Cell {
             this.Formula = (FormulaContent) content;
         }
         this.content = content;
+        this.error = null;
+        if (content instanceof NumericContent numericContent) {
+            value = numericContent.getNumber();
+            state = ValueState.NUMBER;
+        } else if (content instanceof FormulaContent) {
+            state = ValueState.PENDING;
+        } else {
+            state = content.toString().isEmpty() ? ValueState.EMPTY : ValueState.TEXT;
+        }
+    }
+
+    // Evaluates the formula held by this cell and stores the result, or the error, in the value slot
+    public double evaluate(Spreadsheet spreadsheet) {
+        if (!(content instanceof FormulaContent formulaContent)) {
+            throw new IllegalStateException("Cell does not contain a formula: " + coordinate);
+        }
+        // Reaching a formula that is still being evaluated means the references loop back to it
+        if (formulaContent.isEvaluating()) {
+            throw new IllegalArgumentException(FormulaContent.CIRCULAR_REFERENCE);
+        }
+        spreadsheet.beforeChange(this);
+        formulaContent.setEvaluating(true);
+        ValueState oldState = state;
+        double oldValue = value;
+        try {
+            double result = formulaContent.evaluateFormula(spreadsheet);
+            setValue(result);
+            return result;
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            // Keep the formula so it can recover once its precedents change
+            setError(e.getMessage());
+            throw e;
+        } finally {
+            formulaContent.setEvaluating(false);
+            formulaContent.markValid(spreadsheet.getRecalculationEpoch());
+            spreadsheet.valueChanged(this, oldState, oldValue);
+        }
+    }
+
+    // Drops the cached result of the formula, it is pending until evaluated again
+    void invalidate(Spreadsheet spreadsheet) {
+        if (content instanceof FormulaContent formulaContent) {
+            spreadsheet.beforeChange(this);
+            ValueState oldState = state;
+            formulaContent.invalidate();
+            state = ValueState.PENDING;
+            spreadsheet.valueChanged(this, oldState, value);
+        }
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public ValueState getState() {
+        return state;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setValue(double value) {
+        this.value = value;
+        this.state = ValueState.NUMBER;
+        this.error = null;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+        this.state = ValueState.ERROR;
+    }
+
+    // Text shown for the cell, numbers are only formatted here
+    public String getDisplayValue() {
+        return displayValue(state, value, error, content);
+    }
+
+    static String displayValue(ValueState state, double value, String error, Content content) {
+        return switch (state) {
+            case NUMBER -> Double.toString(value);
+            case ERROR -> error;
+            case TEXT -> content.toString();
+            default -> "";
+        };
     }
 
     public String getContentString() {
         return content.toString();
     }
 
+    public boolean isEmpty() {
+        return state == ValueState.EMPTY;
+    }
+
     // Add a dependant cell whose value is changed with this cell e.g. a formula
     public void addDependent(Cell dependent) {
-        if (!dependents.contains(dependent)) { // Avoid duplicate entries
-            dependents.add(dependent);
+        if (dependents == null) {
+            dependents = new LinkedHashSet<>();
+        }
+        if (dependents.add(dependent)) {
+            if (dependent.precedents == null) {
+                dependent.precedents = new LinkedHashSet<>();
+            }
+            dependent.precedents.add(this);
         }
     }
 
     public void removeDependent(Cell dependent) {
-        dependents.remove(dependent);
+        if (dependents != null && dependents.remove(dependent)) {
+            dependent.precedents.remove(this);
+        }
     }
 
-    public List<Cell> getDependents() {
-        return dependents;
+    // Detach this cell from every cell its formula referenced, touching only those cells
+    public void clearPrecedents() {
+        if (precedents == null) {
+            return;
+        }
+        for (Cell precedent : precedents) {
+            precedent.dependents.remove(this);
+        }
+        precedents.clear();
     }
 
-    public void updateDependents(Spreadsheet spreadsheet, String coordinate) {
-        for (Cell dependent : dependents) {
-            Content dependentContent = dependent.getContent();
-            if (dependentContent instanceof FormulaContent) {
-                // Re-set the content to trigger a complete re-evaluation
-                Content originalContent = dependent.getContent();
-                dependent.setContent(originalContent);
-                
-                // Continue updating the chain of dependencies
-                dependent.updateDependents(spreadsheet, coordinate);
-            }
-        }
+    public Set<Cell> getDependents() {
+        return dependents == null ? Collections.emptySet() : dependents;
+    }
+
+    public Set<Cell> getPrecedents() {
+        return precedents == null ? Collections.emptySet() : precedents;
+    }
+
+    // Recalculates this cell and everything downstream of it, returns the number of formulas recomputed
+    public int updateDependents(Spreadsheet spreadsheet) {
+        return new RecalculationScheduler(spreadsheet).recalculate(this);
     }
 
     public FormulaContent getOriginalFormula() {
@@ -2,57 +2,96 @@ package org.example;
 import java.util.List;
 
 class CellNode extends FormulaNode {
-    private final String coordinate;
+    private final Coordinate coordinate; // Null for relative references
+    private final int rowOffset;
+    private final int colOffset;
 
-    public CellNode(String coordinate) {
+    public CellNode(Coordinate coordinate) {
         super(List.of()); // Pass an empty list as children
         this.coordinate = coordinate;
+        this.rowOffset = 0;
+        this.colOffset = 0;
+    }
+
+    public CellNode(String coordinate) {
+        this(requireCoordinate(coordinate));
+    }
+
+    private CellNode(int rowOffset, int colOffset) {
+        super(List.of());
+        this.coordinate = null;
+        this.rowOffset = rowOffset;
+        this.colOffset = colOffset;
+    }
+
+    // A reference the given number of rows and columns away from the anchor cell
+    static CellNode relative(int rowOffset, int colOffset) {
+        return new CellNode(rowOffset, colOffset);
+    }
+
+    private static Coordinate requireCoordinate(String text) {
+        Coordinate coordinate = Coordinate.parse(text);
+        if (coordinate == null) {
+            throw new IllegalArgumentException("Invalid cell reference: " + text);
+        }
+        return coordinate;
+    }
+
+    public boolean isRelative() {
+        return coordinate == null;
+    }
+
+    public int getRow(int anchorRow) {
+        return isRelative() ? anchorRow + rowOffset : coordinate.row();
+    }
+
+    public int getCol(int anchorCol) {
+        return isRelative() ? anchorCol + colOffset : coordinate.col();
     }
 
     @Override
-    public double evaluate(Spreadsheet spreadsheet) {
-        Cell cell = spreadsheet.getCell(coordinate);
-        if (cell == null) {
-            throw new IllegalArgumentException("Referenced cell does not exist: " + coordinate);
+    public double evaluate(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
+        int row = getRow(anchorRow);
+        int col = getCol(anchorCol);
+        if (row < 0 || col < 0) {
+            throw new IllegalArgumentException("Referenced cell does not exist: " + toString(anchorRow, anchorCol));
         }
+        return valueOf(spreadsheet, spreadsheet.getCell(row, col));
+    }
 
+    // Numeric value of a referenced cell, shared with range evaluation
+    static double valueOf(Spreadsheet spreadsheet, Cell cell) {
         Content content = cell.getContent();
-        if (content instanceof NumericContent) {
-            return Double.parseDouble(cell.getContentString());
-        } else if (content instanceof FormulaContent formulaContent) {
-            // First check for circular reference
-            if (formulaContent.getLastValue().equals("#CIRCULAR")) {
-                throw new IllegalArgumentException("#ERROR_CIRCULAR_REFERENCE");
-            }
-            
-            try {
-                return spreadsheet.evaluateCell(coordinate);
-            } catch (IllegalArgumentException e) {
-                if (e.getMessage().contains("#ERROR_CIRCULAR_REFERENCE")) {
-                    throw new IllegalArgumentException("#ERROR_CIRCULAR_REFERENCE");
+        if (content instanceof FormulaContent formulaContent) {
+            // Clean formulas answer from their cached result, only stale ones are evaluated
+            if (!formulaContent.isValid()) {
+                try {
+                    cell.evaluate(spreadsheet);
+                } catch (IllegalArgumentException | ArithmeticException e) {
+                    // Recorded in the value slot of the referenced cell
                 }
-                throw e;
             }
-        } else if (content instanceof TextContent && 
-                content.toString().equals("#ERROR_CIRCULAR_REFERENCE")) {
-            throw new IllegalArgumentException("#ERROR_CIRCULAR_REFERENCE");
+            // Propagate errors of the referenced formula, including circular references
+            if (cell.getState() == Cell.ValueState.ERROR) {
+                throw new IllegalArgumentException(cell.getError());
+            }
+            return cell.getValue();
+        } else if (cell.getState() == Cell.ValueState.NUMBER) {
+            return cell.getValue();
         }
 
         throw new IllegalArgumentException("#ERROR_CIRCULAR_REFERENCE");
     }
 
-    public String getCoordinate() {
-        return coordinate;
-    }
-
-    @Override
-    public String toString() {
-        return coordinate;
+    public Coordinate getCoordinate(int anchorRow, int anchorCol) {
+        return isRelative() ? new Coordinate(anchorRow + rowOffset, anchorCol + colOffset) : coordinate;
     }
 
     @Override
-    public boolean containsReference(String coordinate) {
-        // Check if this cell directly references the target coordinate
-        return coordinate.equals(this.coordinate) || super.containsReference(coordinate);
+    public String toString(int anchorRow, int anchorCol) {
+        if (isRelative()) {
+            return Coordinate.columnName(anchorCol + colOffset) + (anchorRow + rowOffset + 1);
+        }
+        return coordinate.toString();
     }
 }
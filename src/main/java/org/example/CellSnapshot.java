@@ -0,0 +1,18 @@
+package org.example;
+
+// State of one cell as of a snapshot: its content and the result in its value slot
+record CellSnapshot(Content content, Cell.ValueState state, double value, String error) {
+    static final CellSnapshot EMPTY = new CellSnapshot(Cell.EMPTY.getContent(), Cell.ValueState.EMPTY, 0, null);
+
+    static CellSnapshot of(Cell cell) {
+        return new CellSnapshot(cell.getContent(), cell.getState(), cell.getValue(), cell.getError());
+    }
+
+    String getDisplayValue() {
+        return Cell.displayValue(state, value, error, content);
+    }
+
+    boolean isEmpty() {
+        return state == Cell.ValueState.EMPTY;
+    }
+}
@@ -0,0 +1,199 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Sparse cell storage. Cells live in fixed-size blocks keyed by the packed (row, col) index of the block,
+// so memory grows with the number of populated cells instead of the bounding box of the sheet.
+class CellStore {
+    static final int BLOCK_ROWS = Long.SIZE; // One bitmap word per block column
+    static final int BLOCK_COLS = 16;
+    static final int BLOCK_SIZE = BLOCK_ROWS * BLOCK_COLS;
+
+    interface CellVisitor {
+        void visit(int row, int col, Cell cell);
+    }
+
+    // Cells of one block in column-major order, with one occupancy bit per slot so scans skip empty slots
+    // a word at a time; word i covers column i of the block. Plain numbers are also kept in a contiguous
+    // column-major double[] whose validity bitmap says which slots hold one, for the aggregate kernels
+    static final class Block {
+        final Cell[] cells = new Cell[BLOCK_SIZE];
+        final long[] occupied = new long[BLOCK_COLS];
+        final double[] values = new double[BLOCK_SIZE];
+        final long[] numeric = new long[BLOCK_COLS];
+        final int firstRow, firstCol;
+        boolean dirty; // Changed since it was last paged in, for stores that page blocks out
+
+        Block(long key) {
+            firstRow = blockRowOf(key) * BLOCK_ROWS;
+            firstCol = blockColOf(key) * BLOCK_COLS;
+        }
+
+        // Stored cell of an occupied slot. A block paged back in holds only its numbers, the cell of a slot
+        // is created from its number the first time it is asked for
+        Cell cell(int index) {
+            Cell cell = cells[index];
+            return cell != null ? cell : pagedInCell(index);
+        }
+
+        private synchronized Cell pagedInCell(int index) {
+            Cell cell = cells[index];
+            if (cell == null && (numeric[index / BLOCK_ROWS] & (1L << index)) != 0) {
+                cell = new Cell(new Coordinate(firstRow + index % BLOCK_ROWS, firstCol + index / BLOCK_ROWS));
+                cell.setContent(new NumericContent(values[index]));
+                cells[index] = cell;
+            }
+            return cell;
+        }
+    }
+
+    final Map<Long, Block> blocks; // Blocks held in memory
+    private int rowCount;
+    private int columnCount;
+    private int size;
+
+    public CellStore() {
+        this(new HashMap<>());
+    }
+
+    CellStore(Map<Long, Block> blocks) {
+        this.blocks = blocks;
+    }
+
+    // Returns the stored cell or null, never allocates a cell in a store that keeps every block in memory
+    public Cell get(int row, int col) {
+        Block block = findBlock(blockKey(row, col));
+        return block == null ? null : block.cell(indexInBlock(row, col));
+    }
+
+    public void put(int row, int col, Cell cell) {
+        long blockKey = blockKey(row, col);
+        Block block = findBlock(blockKey);
+        if (block == null) {
+            block = createBlock(blockKey);
+        }
+        block.dirty = true;
+        int index = indexInBlock(row, col);
+        if ((block.occupied[index / BLOCK_ROWS] & (1L << index)) == 0) {
+            size++;
+            block.occupied[index / BLOCK_ROWS] |= 1L << index;
+        }
+        block.cells[index] = cell;
+        rowCount = Math.max(rowCount, row + 1);
+        columnCount = Math.max(columnCount, col + 1);
+    }
+
+    // Keeps the columnar copy of plain numbers in step with the content of a stored cell
+    public void updateNumber(int row, int col, Content content) {
+        Block block = findBlock(blockKey(row, col));
+        if (block == null) {
+            return;
+        }
+        block.dirty = true;
+        int index = indexInBlock(row, col);
+        if (content instanceof NumericContent numericContent) {
+            block.values[index] = numericContent.getNumber();
+            block.numeric[index / BLOCK_ROWS] |= 1L << index;
+        } else {
+            block.numeric[index / BLOCK_ROWS] &= ~(1L << index);
+        }
+    }
+
+    // Visits every stored cell, block by block
+    public void forEach(CellVisitor visitor) {
+        for (long key : blockKeys()) {
+            Block block = findBlock(key);
+            for (int word = 0; word < block.occupied.length; word++) {
+                for (long bits = block.occupied[word]; bits != 0; bits &= bits - 1) {
+                    int index = word * BLOCK_ROWS + Long.numberOfTrailingZeros(bits);
+                    visitor.visit(block.firstRow + index % BLOCK_ROWS, block.firstCol + index / BLOCK_ROWS, block.cell(index));
+                }
+            }
+        }
+    }
+
+    Block getBlock(int blockRow, int blockCol) {
+        return findBlock(((long) blockRow << 32) | (blockCol & 0xffffffffL));
+    }
+
+    // Storage hooks: the block under a key, or null if it holds no cell, a new empty block for a key, and the
+    // keys of every block. Stores that keep only part of the blocks in memory override these
+    Block findBlock(long key) {
+        return blocks.get(key);
+    }
+
+    Block createBlock(long key) {
+        Block block = new Block(key);
+        blocks.put(key, block);
+        return block;
+    }
+
+    // Puts a cell that was held across other store calls back in place, in case its block was written out
+    // and read back meanwhile, which leaves the held cell detached from the block
+    void reattach(int row, int col, Cell cell) {
+    }
+
+    long[] blockKeys() {
+        long[] keys = new long[blocks.size()];
+        int count = 0;
+        for (long key : blocks.keySet()) {
+            keys[count++] = key;
+        }
+        return keys;
+    }
+
+    // Keys of the allocated blocks inside the block rectangle, ordered column by column like a full scan
+    long[] blockKeysWithin(int firstBlockRow, int firstBlockCol, int lastBlockRow, int lastBlockCol) {
+        long[] all = blockKeys();
+        long[] keys = new long[all.length];
+        int count = 0;
+        for (long key : all) {
+            int blockRow = blockRowOf(key);
+            int blockCol = blockColOf(key);
+            if (blockRow >= firstBlockRow && blockRow <= lastBlockRow && blockCol >= firstBlockCol && blockCol <= lastBlockCol) {
+                keys[count++] = ((long) blockCol << 32) | blockRow; // Column first, so sorting gives scan order
+            }
+        }
+        keys = Arrays.copyOf(keys, count);
+        Arrays.sort(keys);
+        for (int i = 0; i < count; i++) {
+            keys[i] = (keys[i] << 32) | (keys[i] >>> 32);
+        }
+        return keys;
+    }
+
+    // Number of rows/columns of the bounding box that contains every stored cell
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getBlockCount() {
+        return blocks.size();
+    }
+
+    static long blockKey(int row, int col) {
+        return ((long) (row / BLOCK_ROWS) << 32) | ((col / BLOCK_COLS) & 0xffffffffL);
+    }
+
+    static int blockRowOf(long key) {
+        return (int) (key >>> 32);
+    }
+
+    static int blockColOf(long key) {
+        return (int) key;
+    }
+
+    static int indexInBlock(int row, int col) {
+        return (col % BLOCK_COLS) * BLOCK_ROWS + (row % BLOCK_ROWS);
+    }
+}
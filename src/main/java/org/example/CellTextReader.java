@@ -0,0 +1,101 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.Reader;
+
+// Streaming tokenizer for the semicolon separated text format. Reads the input through one char buffer
+// and hands out one cell at a time, without regex splitting or an intermediate String per line.
+// A ';' preceded by '\' is part of the cell text, rows end at '\n', '\r' or "\r\n".
+class CellTextReader {
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    private boolean endOfInput;
+
+    private final StringBuilder text = new StringBuilder();
+    private int row;
+    private int column;
+    private int nextRow;
+    private int nextColumn;
+
+    public CellTextReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    // Advances to the next cell, returns false once the input is exhausted
+    public boolean next() throws IOException {
+        if (endOfInput) {
+            return false;
+        }
+        text.setLength(0);
+        row = nextRow;
+        column = nextColumn;
+
+        while (true) {
+            int c = read();
+            if (c == -1) {
+                endOfInput = true;
+                return text.length() > 0 || column > 0;
+            }
+            if (c == ';') {
+                int last = text.length() - 1;
+                if (last >= 0 && text.charAt(last) == '\\') {
+                    text.setCharAt(last, ';'); // Escaped separator
+                    continue;
+                }
+                nextColumn = column + 1;
+                return true;
+            }
+            if (c == '\n' || c == '\r') {
+                if (c == '\r' && peek() == '\n') {
+                    position++;
+                }
+                nextRow = row + 1;
+                nextColumn = 0;
+                return true;
+            }
+            text.append((char) c);
+        }
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public boolean isEmpty() {
+        return text.length() == 0;
+    }
+
+    public String getText() {
+        return text.toString();
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int count = reader.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+}
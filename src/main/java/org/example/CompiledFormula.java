@@ -0,0 +1,279 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// A formula tree lowered into a flat stack-machine program. Cell references are resolved to cell slots
+// once at compile time, so evaluation runs a tight loop over an int array instead of walking the tree
+// through virtual calls and re-parsing coordinate strings.
+//
+// Generating a hidden class per formula through the ClassFile API was left out: in Java 23, which this
+// project targets, the API is still a preview (JEP 466) that would need --enable-preview to build and run,
+// and it only became final in JDK 24 (JEP 484).
+class CompiledFormula {
+    // Opcodes, each followed by one operand when noted
+    private static final int CONST = 0;       // constant index
+    private static final int CELL = 1;        // cell slot
+    private static final int SUB = 2;
+    private static final int MUL = 3;
+    private static final int DIV = 4;
+    private static final int ACC_BEGIN = 5;   // aggregate kind
+    private static final int ACC_VALUE = 6;
+    private static final int ACC_RANGE = 7;   // range index
+    private static final int ACC_END = 8;
+
+    // Aggregate kinds
+    private static final int SUM = RangeAggregate.SUM;
+    private static final int MIN = RangeAggregate.MIN;
+    private static final int MAX = RangeAggregate.MAX;
+    private static final int MEAN = 3;
+
+    private final int[] code;
+    private final double[] constants;
+    private final Cell[] cells;
+    private final RangeNode[] ranges;
+    private final int maxStack;
+    private final int maxDepth;
+
+    private CompiledFormula(int[] code, double[] constants, Cell[] cells, RangeNode[] ranges, int maxStack, int maxDepth) {
+        this.code = code;
+        this.constants = constants;
+        this.cells = cells;
+        this.ranges = ranges;
+        this.maxStack = maxStack;
+        this.maxDepth = maxDepth;
+    }
+
+    // Returns null when the tree contains a node the compiler does not know, callers then keep interpreting it
+    public static CompiledFormula compile(FormulaNode root, Spreadsheet spreadsheet) {
+        return compile(root, 0, 0, spreadsheet);
+    }
+
+    // Relative references are resolved against the anchor, so the program belongs to one cell
+    public static CompiledFormula compile(FormulaNode root, int anchorRow, int anchorCol, Spreadsheet spreadsheet) {
+        Compiler compiler = new Compiler(spreadsheet, anchorRow, anchorCol);
+        if (!compiler.emit(root)) {
+            return null;
+        }
+        return compiler.build();
+    }
+
+    // The operand stack and the aggregates live in a frame of the evaluating thread, sized by the compiler,
+    // so evaluation allocates nothing. Evaluating a cell may evaluate stale cells it reads, so calls nest:
+    // each one works above the slots of the calls it runs within and gives them back on return
+    public double evaluate(Spreadsheet spreadsheet) {
+        Frame frame = FRAME.get();
+        int stackBase = frame.stackTop;
+        int aggregateBase = frame.aggregateTop;
+        double[] stack = frame.reserveStack(maxStack);
+        frame.reserveAggregates(maxDepth);
+        try {
+            return run(spreadsheet, stack, stackBase, frame.aggregates, frame.cursors, frame.kinds, aggregateBase);
+        } finally {
+            frame.stackTop = stackBase;
+            frame.aggregateTop = aggregateBase;
+        }
+    }
+
+    // Aggregate functions fold their operands into one RangeAggregate, range cells included, in the order the
+    // tree nodes do, so the results are the same to the last bit
+    private double run(Spreadsheet spreadsheet, double[] stack, int stackBase, RangeAggregate[] aggregates,
+                       RangeIterator[] cursors, int[] kinds, int aggregateBase) {
+        int sp = stackBase;
+        int depth = aggregateBase;
+
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case CONST -> stack[sp++] = constants[code[pc++]];
+                case CELL -> stack[sp++] = CellNode.valueOf(spreadsheet, cells[code[pc++]]);
+                case SUB -> {
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                }
+                case MUL -> {
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                }
+                case DIV -> {
+                    double divisor = stack[--sp];
+                    if (divisor == 0) {
+                        throw new ArithmeticException("Division by zero.");
+                    }
+                    stack[sp - 1] /= divisor;
+                }
+                case ACC_BEGIN -> {
+                    int kind = code[pc++];
+                    kinds[depth] = kind;
+                    aggregates[depth].reset(kind == MEAN ? SUM : kind);
+                    depth++;
+                }
+                case ACC_VALUE -> aggregates[depth - 1].add(stack[--sp]);
+                case ACC_RANGE -> aggregates[depth - 1].addRange(spreadsheet, ranges[code[pc++]], 0, 0, cursors[depth - 1]);
+                case ACC_END -> {
+                    RangeAggregate aggregate = aggregates[--depth];
+                    stack[sp++] = kinds[depth] == MEAN ? aggregate.getResult() / aggregate.getCount() : aggregate.getResult();
+                }
+                default -> throw new IllegalStateException("Unknown opcode at " + (pc - 1));
+            }
+        }
+        return stack[stackBase];
+    }
+
+    private static final ThreadLocal<Frame> FRAME = ThreadLocal.withInitial(Frame::new);
+
+    // Working slots of the formulas a thread is evaluating, innermost on top: operand stack slots, and per
+    // aggregate level a RangeAggregate, the cursor its ranges are scanned with and the function it computes.
+    // When a nested call has to grow an array the calls below it keep using the one they were handed, their
+    // slots in it are still theirs
+    private static class Frame {
+        private double[] stack = new double[64];
+        private int stackTop;
+        private RangeAggregate[] aggregates = new RangeAggregate[0];
+        private RangeIterator[] cursors = new RangeIterator[0];
+        private int[] kinds = new int[0];
+        private int aggregateTop;
+
+        double[] reserveStack(int count) {
+            if (stackTop + count > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(stack.length * 2, stackTop + count));
+            }
+            stackTop += count;
+            return stack;
+        }
+
+        void reserveAggregates(int count) {
+            if (aggregateTop + count > aggregates.length) {
+                int length = Math.max(Math.max(aggregates.length * 2, 16), aggregateTop + count);
+                int old = aggregates.length;
+                aggregates = Arrays.copyOf(aggregates, length);
+                cursors = Arrays.copyOf(cursors, length);
+                kinds = Arrays.copyOf(kinds, length);
+                for (int i = old; i < length; i++) {
+                    aggregates[i] = new RangeAggregate(SUM);
+                    cursors[i] = new RangeIterator();
+                }
+            }
+            aggregateTop += count;
+        }
+    }
+
+    // Emits code in evaluation order, mirroring the arithmetic of the tree nodes so results are identical
+    private static class Compiler {
+        private final Spreadsheet spreadsheet;
+        private final int anchorRow;
+        private final int anchorCol;
+        private final List<Integer> code = new ArrayList<>();
+        private final List<Double> constants = new ArrayList<>();
+        private final List<Cell> cells = new ArrayList<>();
+        private final List<RangeNode> ranges = new ArrayList<>();
+        private int stackSize;
+        private int maxStack;
+        private int depth;
+        private int maxDepth;
+
+        Compiler(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
+            this.spreadsheet = spreadsheet;
+            this.anchorRow = anchorRow;
+            this.anchorCol = anchorCol;
+        }
+
+        boolean emit(FormulaNode node) {
+            if (node instanceof ValueNode) {
+                op(CONST, constants.size());
+                constants.add(node.evaluate(spreadsheet));
+                push();
+            } else if (node instanceof CellNode cellNode) {
+                Cell cell = spreadsheet.getOrCreateCell(cellNode.getCoordinate(anchorRow, anchorCol));
+                if (cell == null) {
+                    return false;
+                }
+                op(CELL, cells.size());
+                cells.add(cell);
+                push();
+            } else if (node instanceof AdditionNode) {
+                return emitAggregate(SUM, node.getChildren());
+            } else if (node instanceof MinNode) {
+                return emitAggregate(MIN, node.getChildren());
+            } else if (node instanceof MaxNode) {
+                return emitAggregate(MAX, node.getChildren());
+            } else if (node instanceof MeanNode) {
+                return emitAggregate(MEAN, node.getChildren());
+            } else if (node instanceof SubtractionNode) {
+                return emitChain(SUB, node.getChildren());
+            } else if (node instanceof DivisionNode) {
+                return emitChain(DIV, node.getChildren());
+            } else if (node instanceof MultiplicationNode) {
+                // Multiplication folds from the identity like the tree node does
+                op(CONST, constants.size());
+                constants.add(1.0);
+                push();
+                for (FormulaNode child : node.getChildren()) {
+                    if (!emit(child)) {
+                        return false;
+                    }
+                    code.add(MUL);
+                    stackSize--;
+                }
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        private boolean emitChain(int opcode, List<FormulaNode> children) {
+            if (children.isEmpty() || !emit(children.get(0))) {
+                return false;
+            }
+            for (int i = 1; i < children.size(); i++) {
+                if (!emit(children.get(i))) {
+                    return false;
+                }
+                code.add(opcode);
+                stackSize--;
+            }
+            return true;
+        }
+
+        private boolean emitAggregate(int kind, List<FormulaNode> children) {
+            if (kind != SUM && children.isEmpty()) {
+                return false;
+            }
+            op(ACC_BEGIN, kind);
+            maxDepth = Math.max(maxDepth, ++depth);
+            for (FormulaNode child : children) {
+                if (child instanceof RangeNode rangeNode) {
+                    op(ACC_RANGE, ranges.size());
+                    ranges.add(rangeNode.resolve(anchorRow, anchorCol));
+                } else {
+                    if (!emit(child)) {
+                        return false;
+                    }
+                    code.add(ACC_VALUE);
+                    stackSize--;
+                }
+            }
+            code.add(ACC_END);
+            depth--;
+            push();
+            return true;
+        }
+
+        private void op(int opcode, int operand) {
+            code.add(opcode);
+            code.add(operand);
+        }
+
+        private void push() {
+            maxStack = Math.max(maxStack, ++stackSize);
+        }
+
+        CompiledFormula build() {
+            int[] program = code.stream().mapToInt(Integer::intValue).toArray();
+            double[] constantPool = constants.stream().mapToDouble(Double::doubleValue).toArray();
+            return new CompiledFormula(program, constantPool, cells.toArray(new Cell[0]),
+                    ranges.toArray(new RangeNode[0]), maxStack, Math.max(maxDepth, 1));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.example;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// Spreadsheet shared between threads. Writers are serialised: an edit and the recalculation it triggers run
+// under the write lock, so their results are published to readers all at once when the lock is released.
+// Readers never block each other and usually take no lock at all: they read optimistically and repeat the
+// read under the read lock only if a write overlapped it. The sheet always recalculates eagerly, so reading
+// a value never has to evaluate, and therefore modify, anything. Snapshots read the cells that have not
+// changed since they were taken the same way, a block at a time, so a save holds no lock for longer than a
+// read and writers carry on while the file is written.
+public class ConcurrentSpreadsheet {
+    private final Spreadsheet spreadsheet;
+    private final StampedLock lock = new StampedLock();
+    private volatile Thread writer; // Holder of the write lock, whose own reads need no lock
+
+    public ConcurrentSpreadsheet() {
+        this(new Spreadsheet());
+    }
+
+    // Takes over the spreadsheet, which must not be used directly afterwards
+    public ConcurrentSpreadsheet(Spreadsheet spreadsheet) {
+        spreadsheet.setRecalculationMode(RecalculationMode.EAGER);
+        this.spreadsheet = spreadsheet;
+        spreadsheet.setLiveReads(this::readLive);
+    }
+
+    public void setCellContent(String coordinate, Content content) {
+        Coordinate parsed = Coordinate.parse(coordinate);
+        if (parsed == null) {
+            throw new IllegalArgumentException("Invalid cell coordinate.");
+        }
+        setCellContent(parsed, content);
+    }
+
+    public void setCellContent(Coordinate coordinate, Content content) {
+        long stamp = lock.writeLock();
+        writer = Thread.currentThread();
+        try {
+            spreadsheet.setCellContent(coordinate, content);
+        } finally {
+            writer = null;
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void setCellContents(Map<Coordinate, ? extends Content> contents) {
+        long stamp = lock.writeLock();
+        writer = Thread.currentThread();
+        try {
+            spreadsheet.setCellContents(contents);
+        } finally {
+            writer = null;
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Numeric value of a number or formula cell, throws for errors, text and empty cells
+    public double getValue(Coordinate coordinate) {
+        return read(sheet -> valueOf(sheet, coordinate));
+    }
+
+    // Values of several cells as of one and the same moment
+    public double[] getValues(Coordinate... coordinates) {
+        return read(sheet -> {
+            double[] values = new double[coordinates.length];
+            for (int i = 0; i < coordinates.length; i++) {
+                values[i] = valueOf(sheet, coordinates[i]);
+            }
+            return values;
+        });
+    }
+
+    public String getDisplayValue(Coordinate coordinate) {
+        return read(sheet -> sheet.getCell(coordinate.row(), coordinate.col()).getDisplayValue());
+    }
+
+    // The sheet as of the last completed write, unaffected by later ones
+    public SpreadsheetSnapshot snapshot() {
+        long stamp = lock.readLock();
+        try {
+            return spreadsheet.snapshot();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Writes the sheet as of the last completed write, writers carry on while the file is written
+    public void save(String filename) throws IOException {
+        SpreadsheetFileManager.saveSnapshot(snapshot(), filename);
+    }
+
+    private static double valueOf(Spreadsheet sheet, Coordinate coordinate) {
+        Cell cell = sheet.getCell(coordinate.row(), coordinate.col());
+        return switch (cell.getState()) {
+            case NUMBER -> cell.getValue();
+            case ERROR -> throw new IllegalArgumentException(cell.getError());
+            default -> throw new IllegalArgumentException("Cell does not contain a numeric or formula value: " + coordinate);
+        };
+    }
+
+    // Reads of the live cells made by snapshots. A journal attached to the sheet takes its checkpoint inside
+    // a write, whose thread already excludes every other writer
+    private <T> T readLive(Supplier<T> reader) {
+        if (writer == Thread.currentThread()) {
+            return reader.get();
+        }
+        return read(sheet -> reader.get());
+    }
+
+    // An optimistic read can see the structures halfway through a write and fail in any way; whatever it
+    // returned or threw is discarded unless no write overlapped it
+    private <T> T read(Function<Spreadsheet, T> reader) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T result = reader.apply(spreadsheet);
+                if (lock.validate(stamp)) {
+                    return result;
+                }
+            } catch (RuntimeException e) {
+                if (lock.validate(stamp)) {
+                    throw e;
+                }
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return reader.apply(spreadsheet);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
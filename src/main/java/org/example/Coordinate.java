@@ -0,0 +1,56 @@
+package org.example;
+
+// Immutable cell position with zero-based row and column. Text such as "B12" is parsed and formatted only
+// at the API boundary; inside the engine coordinates are passed around and compared as values.
+public record Coordinate(int row, int col) {
+    public Coordinate {
+        if (row < 0 || col < 0) {
+            throw new IllegalArgumentException("Invalid cell coordinate.");
+        }
+    }
+
+    // Parses column letters, in either case, followed by a row number starting at 1. Returns null for anything else
+    public static Coordinate parse(CharSequence text) {
+        if (text == null) {
+            return null;
+        }
+        int length = text.length();
+        int i = 0;
+        long col = 0;
+        while (i < length && Character.isLetter(text.charAt(i))) {
+            char c = Character.toUpperCase(text.charAt(i++));
+            if (c < 'A' || c > 'Z') {
+                return null;
+            }
+            col = Math.min(col * 26 + (c - 'A' + 1), Integer.MAX_VALUE + 1L);
+        }
+        int digits = i;
+        long row = 0;
+        while (i < length && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            row = Math.min(row * 10 + (text.charAt(i++) - '0'), Integer.MAX_VALUE + 1L);
+        }
+        if (digits == 0 || i == digits || i != length || row < 1 || row > Integer.MAX_VALUE || col > Integer.MAX_VALUE) {
+            return null;
+        }
+        return new Coordinate((int) row - 1, (int) col - 1);
+    }
+
+    public Coordinate offset(int rows, int cols) {
+        return new Coordinate(row + rows, col + cols);
+    }
+
+    // Column letters of a zero-based column index: 0 is A, 25 is Z, 26 is AA
+    public static String columnName(int col) {
+        StringBuilder columnName = new StringBuilder();
+        while (col >= 0) {
+            columnName.insert(0, (char) ('A' + (col % 26)));
+            col = (col / 26) - 1;
+        }
+        return columnName.toString();
+    }
+
+    @Override
+    public String toString() {
+        return columnName(col) + (row + 1);
+    }
+}
@@ -9,18 +9,18 @@ class DivisionNode extends FormulaNode {
     }
 
     @Override
-    public double evaluate(Spreadsheet spreadsheet) {
+    public double evaluate(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
         List<FormulaNode> children = getChildren();
         if (children.isEmpty()) {
             throw new IllegalStateException("DivisionNode requires at least one operand.");
         }
 
         // Start with the value of the first child
-        double result = children.get(0).evaluate(spreadsheet);
+        double result = children.get(0).evaluate(spreadsheet, anchorRow, anchorCol);
 
         // Sequentially divide by the other children
         for (int i = 1; i < children.size(); i++) {
-            double divisor = children.get(i).evaluate(spreadsheet);
+            double divisor = children.get(i).evaluate(spreadsheet, anchorRow, anchorCol);
             if (divisor == 0) {
                 throw new ArithmeticException("Division by zero.");
             }
@@ -31,12 +31,12 @@ class DivisionNode extends FormulaNode {
     }
 
     @Override
-    public String toString() {
+    public String toString(int anchorRow, int anchorCol) {
         StringBuilder result = new StringBuilder("(");
         List<FormulaNode> children = getChildren();
 
         for (int i = 0; i < children.size(); i++) {
-            result.append(children.get(i).toString());
+            result.append(children.get(i).toString(anchorRow, anchorCol));
             if (i < children.size() - 1) {
                 result.append(" / ");
             }
@@ -0,0 +1,107 @@
+package org.example;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded LRU cache of parsed formulas keyed by their relative shape. Every cell reference in the text is
+// rewritten as its row/column offset from the owning cell, so a formula filled down a column ("=A1*2" in B1,
+// "=A2*2" in B2, ...) has one key and all those cells share one immutable tree, each keeping only its anchor.
+class FormulaCache {
+    static final int DEFAULT_CAPACITY = 4096;
+
+    // Marks a reference in a key. The parser rejects it, so formulas that contain it bypass the cache
+    private static final char REFERENCE = '$';
+
+    private final Map<String, FormulaNode> entries;
+    private long hits;
+    private long misses;
+
+    public FormulaCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FormulaCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1.");
+        }
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, FormulaNode> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // Returns the formula for the cell at (row, col), or null if the text does not parse
+    public FormulaContent parse(String formula, int row, int col) {
+        if (formula == null || formula.indexOf(REFERENCE) >= 0) {
+            FormulaNode root = FormulaParser.parse(formula);
+            return root == null ? null : new FormulaContent(root);
+        }
+        String key = relativeShape(formula, row, col);
+        FormulaNode root = entries.get(key);
+        if (root != null) {
+            hits++;
+        } else {
+            misses++;
+            root = FormulaParser.parseRelative(formula, row, col);
+            if (root == null) {
+                return null; // Invalid formulas are not cached
+            }
+            entries.put(key, root);
+        }
+        return new FormulaContent(root, row, col);
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    // The formula text with each reference replaced by "$rowOffset,colOffset$". A reference is a run of
+    // uppercase letters and digits that starts a word, the same rule the parser applies; a '.' before it
+    // means it is the exponent of a number such as "1.E5" and stays literal
+    static String relativeShape(String formula, int row, int col) {
+        StringBuilder key = new StringBuilder(formula.length() + 8);
+        int length = formula.length();
+        int i = 0;
+        while (i < length) {
+            char c = formula.charAt(i);
+            char previous = i == 0 ? ' ' : formula.charAt(i - 1);
+            if (c < 'A' || c > 'Z' || Character.isLetterOrDigit(previous) || previous == '.') {
+                key.append(c);
+                i++;
+                continue;
+            }
+            int start = i;
+            long column = 0;
+            while (i < length && formula.charAt(i) >= 'A' && formula.charAt(i) <= 'Z') {
+                column = Math.min(column * 26 + (formula.charAt(i++) - 'A' + 1), Integer.MAX_VALUE + 1L);
+            }
+            int digits = i;
+            long number = 0;
+            while (i < length && Character.isDigit(formula.charAt(i))) {
+                number = Math.min(number * 10 + (formula.charAt(i++) - '0'), Integer.MAX_VALUE + 1L);
+            }
+            boolean reference = i > digits && number >= 1 && number <= Integer.MAX_VALUE && column <= Integer.MAX_VALUE
+                    && (i == length || !Character.isLetterOrDigit(formula.charAt(i)));
+            if (reference) {
+                key.append(REFERENCE).append(number - 1 - row).append(',').append(column - 1 - col).append(REFERENCE);
+            } else {
+                key.append(formula, start, i);
+            }
+        }
+        return key.toString();
+    }
+}
@@ -1,43 +1,97 @@
 package org.example;
 
 class FormulaContent extends Content {
+    static final String CIRCULAR_REFERENCE = "#ERROR_CIRCULAR_REFERENCE";
+
+    static final long INVALID = -1;
+
     private final FormulaNode root;
-    private String lastValue;
+    // Cell the relative references of the tree are resolved against
+    private final int anchorRow;
+    private final int anchorCol;
+    // Recalculation epoch at which the cached result in the owning cell's value slot was computed
+    private long validEpoch = INVALID;
+    private boolean evaluating;
+    private CompiledFormula compiled;
+    private Spreadsheet compiledFor;
 
     public FormulaContent(FormulaNode root) {
+        this(root, 0, 0);
+    }
+
+    // Content for a possibly shared tree whose relative references are resolved against the given cell
+    public FormulaContent(FormulaNode root, int anchorRow, int anchorCol) {
         this.root = root;
-        this.lastValue = "";
+        this.anchorRow = anchorRow;
+        this.anchorCol = anchorCol;
     }
 
-    public double evaluateFormula(Spreadsheet spreadsheet, String coordinate) {
+    public double evaluateFormula(Spreadsheet spreadsheet) {
         if (root == null) {
             throw new IllegalStateException("Formula is empty");
         }
 
-        if (hasCircularReference(coordinate)) {
-            lastValue = "#CIRCULAR";
-            throw new IllegalArgumentException("#ERROR_CIRCULAR_REFERENCE");
+        // The result is stored in the value slot of the owning cell
+        return spreadsheet.isCompiledEvaluation()
+                ? evaluateCompiled(spreadsheet)
+                : root.evaluate(spreadsheet, anchorRow, anchorCol);
+    }
+
+    // Cell slots of a program belong to one spreadsheet, so it is rebuilt if the formula moves to another
+    private double evaluateCompiled(Spreadsheet spreadsheet) {
+        if (compiledFor != spreadsheet) {
+            compiled = CompiledFormula.compile(root, anchorRow, anchorCol, spreadsheet);
+            compiledFor = spreadsheet;
         }
+        return compiled != null ? compiled.evaluate(spreadsheet) : root.evaluate(spreadsheet, anchorRow, anchorCol);
+    }
+
+    public boolean isValid() {
+        return validEpoch != INVALID;
+    }
 
-        double result = root.evaluate(spreadsheet);
-        lastValue = String.valueOf(result);
-        return result;
+    public long getValidEpoch() {
+        return validEpoch;
+    }
+
+    public void markValid(long epoch) {
+        validEpoch = epoch;
+    }
+
+    // Only the dependency engine invalidates, references keep reading the cached result until then
+    public void invalidate() {
+        validEpoch = INVALID;
+    }
+
+    public boolean isEvaluating() {
+        return evaluating;
+    }
+
+    public void setEvaluating(boolean evaluating) {
+        this.evaluating = evaluating;
     }
 
     public FormulaNode getRoot() {
         return root;
     }
 
-    @Override
-    public String toString() {
-        return root == null ? "" : "=" + root;
+    public int getAnchorRow() {
+        return anchorRow;
+    }
+
+    public int getAnchorCol() {
+        return anchorCol;
     }
 
-    public String getLastValue() {
-        return lastValue;
+    // Source the parser reads back: function arguments are separated by ';' as typed, where toString lists
+    // them with ", " for display. Only the text format stores this, the binary formats and the journal
+    // store the tree itself, see FormulaTrees
+    public String toSource() {
+        return toString().replace(", ", ";");
     }
 
-    public boolean hasCircularReference(String coordinate) {
-        return root.containsReference(coordinate);
+    @Override
+    public String toString() {
+        return root == null ? "" : "=" + root.toString(anchorRow, anchorCol);
     }
-}
\ No newline at end of file
+}
@@ -2,6 +2,9 @@ package org.example;
 
 import java.util.List;
 
+// Node of a formula tree. References are either absolute, as produced by FormulaParser.parse, or relative
+// to the anchor cell that owns the formula, so one interned tree can be shared by every cell of a fill-down.
+// Absolute references ignore the anchor.
 abstract class FormulaNode {
     private final List<FormulaNode> children;
 
@@ -13,18 +16,17 @@ abstract class FormulaNode {
         return children;
     }
 
-    public abstract double evaluate(Spreadsheet spreadsheet);
+    public abstract double evaluate(Spreadsheet spreadsheet, int anchorRow, int anchorCol);
+
+    public double evaluate(Spreadsheet spreadsheet) {
+        return evaluate(spreadsheet, 0, 0);
+    }
+
+    // Formula text with every reference resolved against the anchor
+    public abstract String toString(int anchorRow, int anchorCol);
 
     @Override
-    public abstract String toString();
-
-    public boolean containsReference(String coordinate) {
-        // Base implementation for most nodes - check children
-        for (FormulaNode child : children) {
-            if (child.containsReference(coordinate)) {
-                return true;
-            }
-        }
-        return false;
+    public String toString() {
+        return toString(0, 0);
     }
 }
@@ -1,346 +1,354 @@
 package org.example;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.List;
 
+// Single-pass recursive-descent parser. Reads the formula text directly, without tokenizing it first,
+// and builds the node tree as it goes. Errors are recorded and returned as null instead of thrown.
+//
+//   formula   := '='? expression
+//   expression:= term (('+' | '-') term)*
+//   term      := primary (('*' | '/') primary)*
+//   primary   := number | cell | function '(' argument (';' argument)* ')' | '(' expression ')'
+//   argument  := cell ':' cell | expression
 public class FormulaParser {
-    private enum TokenType {
-        NUMBER, 
-        CELL_REFERENCE, 
-        OPERATOR, 
-        FUNCTION, 
-        LEFT_PAREN, 
-        RIGHT_PAREN, 
-        ARGUMENT_SEPARATOR
+    // Supported functions
+    private static final String[] SUPPORTED_FUNCTIONS = {"SUMA", "MIN", "MAX", "PROMEDIO"};
+
+    // Powers of ten that are exact doubles, used to convert short decimal literals without Double.parseDouble
+    private static final double[] EXACT_POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final CharSequence input;
+    private final boolean relative;
+    private final int anchorRow;
+    private final int anchorCol;
+    private int position;
+    private String error;
+
+    // Indices of the last coordinate read
+    private int coordinateRow;
+    private int coordinateCol;
+
+    private FormulaParser(CharSequence input, boolean relative, int anchorRow, int anchorCol) {
+        this.input = input;
+        this.relative = relative;
+        this.anchorRow = anchorRow;
+        this.anchorCol = anchorCol;
+        this.position = input.charAt(0) == '=' ? 1 : 0;
     }
 
-    // Represents a token during parsing
-    private static class Token {
-        TokenType type;
-        String value;
+    public static FormulaNode parse(String formula) {
+        return parse((CharSequence) formula);
+    }
 
-        Token(TokenType type, String value) {
-            this.type = type;
-            this.value = value;
-        }
+    public static FormulaNode parse(CharSequence formula) {
+        return parse(formula, false, 0, 0);
     }
-    // Set operator precedence here
-    private static final Map<String, Integer> OPERATOR_PRECEDENCE = Map.of(
-        "+", 1,
-        "-", 1,
-        "*", 2,
-        "/", 2
-    );
 
-    // Supported functions
-    private static final Set<String> SUPPORTED_FUNCTIONS = Set.of(
-        "SUMA", "MIN", "MAX", "PROMEDIO"
-    );
+    // Builds a tree whose references are offsets from the anchor cell, see FormulaCache
+    static FormulaNode parseRelative(CharSequence formula, int anchorRow, int anchorCol) {
+        return parse(formula, true, anchorRow, anchorCol);
+    }
 
-    public static FormulaNode parse(String formula) {
-        if (formula == null || formula.trim().isEmpty()) {
+    private static FormulaNode parse(CharSequence formula, boolean relative, int anchorRow, int anchorCol) {
+        if (formula == null || isBlank(formula)) {
             System.out.println("Error: Formula cannot be null or empty");
             return null;
         }
-        if (formula.startsWith("=")) {
-            formula = formula.substring(1);
+        FormulaParser parser = new FormulaParser(formula, relative, anchorRow, anchorCol);
+        FormulaNode node = parser.parseExpression();
+        if (node != null && parser.peek() != -1) {
+            node = parser.fail("Unexpected '" + (char) parser.peek() + "'");
+        }
+        if (node == null) {
+            System.out.println("Error: " + parser.error);
         }
-        // Tokenize the input with error handling
-        List<Token> tokens;
-        try {
-            tokens = tokenize(formula);
-            if (tokens.isEmpty()) {
-                System.out.println("Error: No valid tokens found");
+        return node;
+    }
+
+    private FormulaNode parseExpression() {
+        FormulaNode left = parseTerm();
+        while (left != null) {
+            int operator = peek();
+            if (operator != '+' && operator != '-') {
+                break;
+            }
+            position++;
+            FormulaNode right = parseTerm();
+            if (right == null) {
                 return null;
             }
-        } catch (IllegalArgumentException e) {
-            System.out.println("Error: " + e.getMessage());
-            return null;
+            List<FormulaNode> children = List.of(left, right);
+            left = operator == '+' ? new AdditionNode(children) : new SubtractionNode(children);
         }
+        return left;
+    }
 
-        try {
-            // Convert to Reverse Polish Notation
-            List<Token> rpn = convertToRPN(tokens);
-            if (rpn.isEmpty()) {
-                System.out.println("Error: Could not convert to RPN");
-                return null;
+    private FormulaNode parseTerm() {
+        FormulaNode left = parsePrimary();
+        while (left != null) {
+            int operator = peek();
+            if (operator != '*' && operator != '/') {
+                break;
             }
-            // Build the node tree
-            FormulaNode node = buildNodeTree(rpn);
-            if (node == null) {
-                System.out.println("Error: Could not build syntax tree");
+            position++;
+            FormulaNode right = parsePrimary();
+            if (right == null) {
                 return null;
             }
-            return node;
-
-        } catch (Exception e) {
-            System.out.println("Error processing formula: " + e.getMessage());
-            return null;
+            List<FormulaNode> children = List.of(left, right);
+            left = operator == '*' ? new MultiplicationNode(children) : new DivisionNode(children);
         }
+        return left;
     }
 
-    private static List<Token> tokenize(String formula) {
-        List<Token> tokens = new ArrayList<>();
-        StringBuilder currentToken = new StringBuilder();
-        
-        for (int i = 0; i < formula.length(); i++) {
-            char c = formula.charAt(i);
-            
-            if (Character.isWhitespace(c)) {
-                if (currentToken.length() > 0) {
-                    tokens.add(createToken(currentToken.toString()));
-                    currentToken.setLength(0);
-                }
-                continue;
+    private FormulaNode parsePrimary() {
+        int c = peek();
+        if (c == -1) {
+            return fail("Unexpected end of formula");
+        }
+        if (c == '(') {
+            position++;
+            FormulaNode inner = parseExpression();
+            if (inner == null) {
+                return null;
             }
-            
-            // Check if character is an operator (+,-,*,/) or parenthesis
-            if (isOperatorOrParenthesis(c)) {
-                if (currentToken.length() > 0) {
-                    tokens.add(createToken(currentToken.toString()));
-                    currentToken.setLength(0);
-                }
-                
-                TokenType type;
-                if (c == '(') {
-                    type = TokenType.LEFT_PAREN;
-                } else if (c == ')') {
-                    type = TokenType.RIGHT_PAREN; 
-                } else {
-                    type = TokenType.OPERATOR;
-                }
-                
-                tokens.add(new Token(type, String.valueOf(c)));
-                continue;
+            return expect(')') ? inner : null;
+        }
+        if (isDigit(c) || c == '.') {
+            return parseNumber();
+        }
+        if (isLetter(c)) {
+            int start = position;
+            while (position < input.length() && isLetter(input.charAt(position))) {
+                position++;
             }
-            
-            // Check for argument separator
-            if (c == ';') {
-                if (currentToken.length() > 0) {
-                    tokens.add(createToken(currentToken.toString()));
-                    currentToken.setLength(0);
+            if (position < input.length() && isDigit(input.charAt(position))) {
+                position = start;
+                if (!parseCoordinate()) {
+                    return null;
                 }
-                tokens.add(new Token(TokenType.ARGUMENT_SEPARATOR, ";"));
-                continue;
+                return relative
+                        ? CellNode.relative(coordinateRow - anchorRow, coordinateCol - anchorCol)
+                        : new CellNode(new Coordinate(coordinateRow, coordinateCol));
             }
-            
-            // Build token
-            currentToken.append(c);
+            return parseFunction(start, position);
         }
-        
-        // Add last token if exists
-        if (currentToken.length() > 0) {
-            tokens.add(createToken(currentToken.toString()));
-        }
-        
-        return tokens;
+        return fail("Unexpected '" + (char) c + "'");
     }
 
-    private static Token createToken(String value) {
-        // Check if it's a cell reference like "A1" or range like "A1:B2"
-        boolean isCellRef = value.matches("[A-Z][0-9]+") || 
-                           value.matches("[A-Z][0-9]+:[A-Z][0-9]+");
-        if (isCellRef) {
-            return new Token(TokenType.CELL_REFERENCE, value);
+    private FormulaNode parseFunction(int nameStart, int nameEnd) {
+        String name = functionName(nameStart, nameEnd);
+        if (name == null) {
+            return fail("Invalid token: " + input.subSequence(nameStart, nameEnd));
         }
-        
-        // Check if it's a number (positive, negative or decimal)
-        try {
-            Double.parseDouble(value);
-            return new Token(TokenType.NUMBER, value);
-        } catch (NumberFormatException e) {
-            // Not a number, continue checking
+        if (!expect('(')) {
+            return null;
         }
-        
-        // Check if it's a supported function name
-        String upperValue = value.toUpperCase();
-        if (SUPPORTED_FUNCTIONS.contains(upperValue)) {
-            return new Token(TokenType.FUNCTION, upperValue);
+        List<FormulaNode> arguments = new ArrayList<>();
+        do {
+            FormulaNode argument = parseArgument();
+            if (argument == null) {
+                return null;
+            }
+            arguments.add(argument);
+        } while (accept(';'));
+        if (!expect(')')) {
+            return null;
         }
-        
-        // If we get here, the token is invalid
-        throw new IllegalArgumentException("Invalid token: " + value);
+        return switch (name) {
+            case "SUMA" -> new AdditionNode(arguments, true);
+            case "MIN" -> new MinNode(arguments);
+            case "MAX" -> new MaxNode(arguments);
+            default -> new MeanNode(arguments);
+        };
     }
 
-    private static List<Token> convertToRPN(List<Token> tokens) {
-        List<Token> output = new ArrayList<>();
-        List<Token> operatorStack = new ArrayList<>();
-        
-        for (Token token : tokens) {
-            if (token.type == TokenType.NUMBER || token.type == TokenType.CELL_REFERENCE) {
-                output.add(token);
-                continue;
+    // A range keeps only its corners, functions stream over its cells
+    private FormulaNode parseArgument() {
+        int start = position;
+        skipWhitespace();
+        if (position < input.length() && isUpperCase(input.charAt(position))) {
+            if (parseCoordinate()) {
+                int firstRow = coordinateRow;
+                int firstCol = coordinateCol;
+                if (accept(':')) {
+                    if (!parseCoordinate()) {
+                        return null;
+                    }
+                    if (relative) {
+                        return RangeNode.relative(firstRow - anchorRow, firstCol - anchorCol,
+                                coordinateRow - anchorRow, coordinateCol - anchorCol);
+                    }
+                    return new RangeNode(new Coordinate(firstRow, firstCol), new Coordinate(coordinateRow, coordinateCol));
+                }
             }
-            
-            if (token.type == TokenType.FUNCTION || token.type == TokenType.LEFT_PAREN) {
-                operatorStack.add(token);
-                continue;
+            // Not a range, parse the argument again as an ordinary expression
+            position = start;
+            error = null;
+        }
+        return parseExpression();
+    }
+
+    // Uppercase column letters followed by a row number of at least 1, leaves the indices in coordinateRow/Col
+    private boolean parseCoordinate() {
+        skipWhitespace();
+        int start = position;
+        long col = 0;
+        while (position < input.length() && isUpperCase(input.charAt(position))) {
+            col = Math.min(col * 26 + (input.charAt(position++) - 'A' + 1), Integer.MAX_VALUE + 1L);
+        }
+        int digits = position;
+        long row = 0;
+        while (position < input.length() && isDigit(input.charAt(position)) && row <= Integer.MAX_VALUE) {
+            row = row * 10 + (input.charAt(position++) - '0');
+        }
+        if (digits == start || position == digits || row < 1 || row > Integer.MAX_VALUE || col > Integer.MAX_VALUE
+                || (position < input.length() && isLetterOrDigit(input.charAt(position)))) {
+            while (position < input.length() && isLetterOrDigit(input.charAt(position))) {
+                position++;
             }
-            
-            if (token.type == TokenType.RIGHT_PAREN) {
-                while (!operatorStack.isEmpty() && 
-                       getLast(operatorStack).type != TokenType.LEFT_PAREN) {
-                    output.add(removeLast(operatorStack));
-                }
-                
-                if (!operatorStack.isEmpty()) {
-                    removeLast(operatorStack);
-                }
-                
-                if (!operatorStack.isEmpty() && getLast(operatorStack).type == TokenType.FUNCTION) {
-                    output.add(removeLast(operatorStack));
-                }
-                continue;
+            fail("Invalid token: " + input.subSequence(start, position));
+            return false;
+        }
+        coordinateRow = (int) row - 1;
+        coordinateCol = (int) col - 1;
+        return true;
+    }
+
+    // Digits with an optional fraction and exponent. Short literals are converted exactly in place,
+    // anything beyond the exact fast path goes through Double.parseDouble
+    private FormulaNode parseNumber() {
+        int start = position;
+        long mantissa = 0;
+        int significantDigits = 0;
+        int scale = 0;
+        boolean anyDigit = false;
+        while (position < input.length() && isDigit(input.charAt(position))) {
+            mantissa = accumulate(mantissa, input.charAt(position++));
+            significantDigits += mantissa == 0 ? 0 : 1;
+            anyDigit = true;
+        }
+        if (position < input.length() && input.charAt(position) == '.') {
+            position++;
+            while (position < input.length() && isDigit(input.charAt(position))) {
+                mantissa = accumulate(mantissa, input.charAt(position++));
+                significantDigits += mantissa == 0 ? 0 : 1;
+                scale++;
+                anyDigit = true;
+            }
+        }
+        boolean exponent = false;
+        if (anyDigit && position < input.length() && (input.charAt(position) == 'e' || input.charAt(position) == 'E')) {
+            int mark = position++;
+            if (position < input.length() && (input.charAt(position) == '+' || input.charAt(position) == '-')) {
+                position++;
             }
-            
-            // Handle operators
-            if (token.type == TokenType.OPERATOR) {
-                while (!operatorStack.isEmpty() && 
-                       getLast(operatorStack).type == TokenType.OPERATOR &&
-                       getPrecedence(getLast(operatorStack)) >= getPrecedence(token)) {
-                    output.add(removeLast(operatorStack));
+            if (position < input.length() && isDigit(input.charAt(position))) {
+                exponent = true;
+                while (position < input.length() && isDigit(input.charAt(position))) {
+                    position++;
                 }
-                operatorStack.add(token);
+            } else {
+                position = mark;
             }
         }
-        
-        while (!operatorStack.isEmpty()) {
-            Token token = removeLast(operatorStack);
-            if (token.type == TokenType.LEFT_PAREN || token.type == TokenType.RIGHT_PAREN) {
-                throw new IllegalArgumentException("Mismatched parentheses");
+        if (!anyDigit || (position < input.length() && isLetterOrDigit(input.charAt(position)))) {
+            while (position < input.length() && (isLetterOrDigit(input.charAt(position)) || input.charAt(position) == '.')) {
+                position++;
             }
-            output.add(token);
+            return fail("Invalid token: " + input.subSequence(start, position));
         }
-        
-        return output;
-    }
-    
-    // Helper methods to treat ArrayList like a stack
-    private static Token getLast(List<Token> list) {
-        return list.get(list.size() - 1);
-    }
-    
-    private static Token removeLast(List<Token> list) {
-        return list.remove(list.size() - 1);
+        if (!exponent && significantDigits <= 15 && mantissa < MAX_EXACT_MANTISSA && scale < EXACT_POWERS_OF_TEN.length) {
+            return new ValueNode(mantissa / EXACT_POWERS_OF_TEN[scale]);
+        }
+        return new ValueNode(Double.parseDouble(input.subSequence(start, position).toString()));
     }
 
-    private static int getPrecedence(Token token) {
-        return OPERATOR_PRECEDENCE.getOrDefault(token.value, 0);
+    private static long accumulate(long mantissa, char digit) {
+        // Saturates instead of overflowing, long literals take the Double.parseDouble path anyway
+        return mantissa < MAX_EXACT_MANTISSA ? mantissa * 10 + (digit - '0') : mantissa;
     }
 
-    private static FormulaNode buildNodeTree(List<Token> rpn) {
-        Deque<FormulaNode> nodeStack = new ArrayDeque<>();
-        
-        for (Token token : rpn) {
-            switch (token.type) {
-                case NUMBER:
-                    nodeStack.push(new ValueNode(Double.parseDouble(token.value)));
-                    break;
-                
-                case CELL_REFERENCE:
-                    if (token.value.contains(":")) {
-                        // This is a range, expand it into individual cells
-                        List<FormulaNode> cellNodes = parseRange(token.value);
-                        // For functions like SUMA, we can add all cells to the stack
-                        cellNodes.forEach(nodeStack::push);
-                    } else {
-                        // Single cell reference
-                        nodeStack.push(new CellNode(token.value));
-                    }
-                    break;
-                
-                case OPERATOR:
-                    if (nodeStack.size() < 2) {
-                        throw new IllegalArgumentException("Invalid formula: insufficient operands");
-                    }
-                    FormulaNode right = nodeStack.pop();
-                    FormulaNode left = nodeStack.pop();
-                    List<FormulaNode> children = Arrays.asList(left, right);
-                    FormulaNode operatorNode = switch (token.value) {
-                        case "+" -> new AdditionNode(children);
-                        case "-" -> new SubtractionNode(children);
-                        case "*" -> new MultiplicationNode(children);
-                        case "/" -> new DivisionNode(children);
-                        default -> throw new IllegalArgumentException("Unknown operator: " + token.value);
-                    };
-                    nodeStack.push(operatorNode);
-                    break;
-                
-                case FUNCTION:
-                    // For functions, collect all available nodes from the stack
-                    List<FormulaNode> functionChildren = new ArrayList<>();
-                    while (!nodeStack.isEmpty()) {
-                        functionChildren.add(0, nodeStack.pop());
-                    }
-                    
-                    if (functionChildren.isEmpty()) {
-                        throw new IllegalArgumentException("Function must have at least one argument: " + token.value);
-                    }
-                    
-                    // Create appropriate function node
-                    FormulaNode functionNode = switch (token.value) {
-                        case "SUMA" -> new AdditionNode(functionChildren);
-                        case "MIN" -> new MinNode(functionChildren);
-                        case "MAX" -> new MaxNode(functionChildren);
-                        case "PROMEDIO" -> new MeanNode(functionChildren);
-                        default -> throw new IllegalArgumentException("Unknown function: " + token.value);
-                    };
-                    
-                    nodeStack.push(functionNode);
-                    break;
+    // Returns the canonical name of a supported function, matched case-insensitively
+    private String functionName(int start, int end) {
+        for (String function : SUPPORTED_FUNCTIONS) {
+            if (function.length() != end - start) {
+                continue;
+            }
+            boolean matches = true;
+            for (int i = 0; i < function.length() && matches; i++) {
+                matches = Character.toUpperCase(input.charAt(start + i)) == function.charAt(i);
+            }
+            if (matches) {
+                return function;
             }
         }
-        
-        if (nodeStack.size() != 1) {
-            throw new IllegalArgumentException("Invalid formula: too many operands");
-        }
-        
-        return nodeStack.pop();
+        return null;
     }
 
-    private static boolean isOperatorOrParenthesis(char c) {
-        return c == '+' || c == '-' || c == '*' || c == '/' || c == '(' || c == ')';
+    // Next significant character without consuming it, -1 at the end of the input
+    private int peek() {
+        skipWhitespace();
+        return position < input.length() ? input.charAt(position) : -1;
     }
 
-    private static int determineFunctionArgCount(String functionName) {
-        switch (functionName.toUpperCase()) {
-            case "SUMA":   
-            case "MIN":   
-            case "MAX":    
-            case "PROMEDIO": 
-                return -1; 
-            default:
-                throw new IllegalArgumentException("Unknown function: " + functionName);
+    private boolean accept(char expected) {
+        if (peek() == expected) {
+            position++;
+            return true;
         }
+        return false;
     }
 
-    // Example method to handle range parsing (simplified)
-    private static List<FormulaNode> parseRange(String range) {
-        List<FormulaNode> cellNodes = new ArrayList<>();
+    private boolean expect(char expected) {
+        if (accept(expected)) {
+            return true;
+        }
+        int c = peek();
+        fail("Expected '" + expected + "' but found " + (c == -1 ? "end of formula" : "'" + (char) c + "'"));
+        return false;
+    }
 
-        String[] parts = range.split(":");
-        if (parts.length == 1) {
-            cellNodes.add(new CellNode(parts[0]));
-        } else if (parts.length == 2) {
-            String startCell = parts[0];
-            String endCell = parts[1];
+    private FormulaNode fail(String message) {
+        if (error == null) {
+            error = message + " at position " + position;
+        }
+        return null;
+    }
 
-            // Extract column letters and row numbers
-            char startCol = startCell.charAt(0);
-            int startRow = Integer.parseInt(startCell.substring(1));
-            char endCol = endCell.charAt(0);
-            int endRow = Integer.parseInt(endCell.substring(1));
+    private void skipWhitespace() {
+        while (position < input.length() && Character.isWhitespace(input.charAt(position))) {
+            position++;
+        }
+    }
 
-            // Iterate through the rectangular range
-            for (char col = startCol; col <= endCol; col++) {
-                for (int row = startRow; row <= endRow; row++) {
-                    String cellRef = String.valueOf(col) + row;
-                    cellNodes.add(new CellNode(cellRef));
-                }
+    private static boolean isBlank(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
             }
-        } else {
-            throw new IllegalArgumentException("Invalid range format: " + range);
         }
+        return true;
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isUpperCase(int c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isLetter(int c) {
+        return isUpperCase(c) || (c >= 'a' && c <= 'z');
+    }
 
-        return cellNodes;
+    private static boolean isLetterOrDigit(int c) {
+        return isLetter(c) || isDigit(c);
     }
 }
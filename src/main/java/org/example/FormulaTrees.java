@@ -0,0 +1,130 @@
+package org.example;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Pre-tokenised formula trees, the form the binary formats and the journal store formulas in. A node is its
+// tag, then the number for a value, the position for a cell, the corners for a range, or the child count
+// and the children. References are stored resolved, so every tree is read back as an absolute tree, and
+// literals keep their exact bits: a value such as 1e400 has no source text the parser reads back as it was.
+final class FormulaTrees {
+    static final byte VALUE = 0;
+    static final byte CELL = 1;
+    static final byte RANGE = 2;
+    static final byte ADD = 3;
+    static final byte SUMA = 4;
+    static final byte SUB = 5;
+    static final byte MUL = 6;
+    static final byte DIV = 7;
+    static final byte MIN = 8;
+    static final byte MAX = 9;
+    static final byte MEAN = 10;
+
+    private FormulaTrees() {
+    }
+
+    // Bytes write takes for the tree
+    static int size(FormulaNode node) {
+        if (node instanceof ValueNode) {
+            return Byte.BYTES + Double.BYTES;
+        } else if (node instanceof CellNode) {
+            return Byte.BYTES + 2 * Integer.BYTES;
+        } else if (node instanceof RangeNode) {
+            return Byte.BYTES + 4 * Integer.BYTES;
+        }
+        int size = Byte.BYTES + Integer.BYTES;
+        for (FormulaNode child : node.getChildren()) {
+            size += size(child);
+        }
+        return size;
+    }
+
+    // Tag of a node with children
+    static byte tagOf(FormulaNode node) {
+        if (node instanceof AdditionNode additionNode) {
+            return additionNode.isFunction() ? SUMA : ADD;
+        } else if (node instanceof SubtractionNode) {
+            return SUB;
+        } else if (node instanceof MultiplicationNode) {
+            return MUL;
+        } else if (node instanceof DivisionNode) {
+            return DIV;
+        } else if (node instanceof MinNode) {
+            return MIN;
+        } else if (node instanceof MaxNode) {
+            return MAX;
+        } else if (node instanceof MeanNode) {
+            return MEAN;
+        }
+        throw new IllegalArgumentException("Cannot store formula node: " + node);
+    }
+
+    // Node with children for a tag read back
+    static FormulaNode operation(byte tag, List<FormulaNode> children) throws IOException {
+        return switch (tag) {
+            case ADD -> new AdditionNode(children);
+            case SUMA -> new AdditionNode(children, true);
+            case SUB -> new SubtractionNode(children);
+            case MUL -> new MultiplicationNode(children);
+            case DIV -> new DivisionNode(children);
+            case MIN -> new MinNode(children);
+            case MAX -> new MaxNode(children);
+            case MEAN -> new MeanNode(children);
+            default -> throw new IOException("Unknown formula node tag " + tag);
+        };
+    }
+
+    // The buffer must have room for size(node) bytes
+    static void write(FormulaNode node, int anchorRow, int anchorCol, ByteBuffer out) {
+        if (node instanceof ValueNode valueNode) {
+            out.put(VALUE).putDouble(valueNode.getValue());
+        } else if (node instanceof CellNode cellNode) {
+            out.put(CELL).putInt(cellNode.getRow(anchorRow)).putInt(cellNode.getCol(anchorCol));
+        } else if (node instanceof RangeNode rangeNode) {
+            RangeNode range = rangeNode.resolve(anchorRow, anchorCol);
+            out.put(RANGE).putInt(range.getStartRow()).putInt(range.getStartCol())
+                    .putInt(range.getEndRow()).putInt(range.getEndCol());
+        } else {
+            out.put(tagOf(node)).putInt(node.getChildren().size());
+            for (FormulaNode child : node.getChildren()) {
+                write(child, anchorRow, anchorCol, out);
+            }
+        }
+    }
+
+    // A tree that runs past the end of the buffer or holds an unknown tag fails with an IOException
+    static FormulaNode read(ByteBuffer in) throws IOException {
+        try {
+            return readNode(in);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Formula tree ends early", e);
+        }
+    }
+
+    private static FormulaNode readNode(ByteBuffer in) throws IOException {
+        byte tag = in.get();
+        switch (tag) {
+            case VALUE:
+                return new ValueNode(in.getDouble());
+            case CELL:
+                return new CellNode(new Coordinate(in.getInt(), in.getInt()));
+            case RANGE:
+                return new RangeNode(new Coordinate(in.getInt(), in.getInt()), new Coordinate(in.getInt(), in.getInt()));
+            default:
+                break;
+        }
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining()) {
+            throw new IOException("Formula node with " + count + " children in " + in.remaining() + " bytes");
+        }
+        List<FormulaNode> children = new ArrayList<>(Arrays.asList(new FormulaNode[count]));
+        for (int i = 0; i < count; i++) {
+            children.set(i, readNode(in));
+        }
+        return operation(tag, children);
+    }
+}
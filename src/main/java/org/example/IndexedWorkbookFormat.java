@@ -0,0 +1,506 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+// Block-indexed workbook format that can be saved incrementally. Every block of the cell store is one record
+// in a slot of its own, found through an index of fixed-size entries, so a save that only has to write the
+// blocks changed since the last one writes just their records and a new index, and leaves the rest of the
+// file untouched. Layout:
+//   header   magic, version, offset of the index, entries the index has room for, entries in use
+//   records  per block, in a slot rounded up in size: cell count, then per cell its slot in the block, kind
+//            and the number, text, or formula tree (see FormulaTrees) with its cached result
+//   index    per block its key, record offset, record length, slot capacity and CRC32C of the record
+// A patch never overwrites anything the header leads to. Changed records and the new index go to space the
+// current index does not use: the slots an earlier patch left behind, or the end of the file. Once they are
+// forced to the disk the header is rewritten to point at the new index, and that one write of a single
+// sector is the commit: a crash before it leaves the previous save, a crash after it the new one. A full
+// save writes the file compactly again, a journal keeps the edits durable in between.
+class IndexedWorkbookFormat {
+    static final int MAGIC = 0x53324921; // "S2I!"
+    static final short VERSION = 2; // Version 1 stored formulas as source
+
+    private static final int HEADER_SIZE = 24;
+    private static final int ENTRY_SIZE = 32;
+    private static final int MIN_SLOT = 64;
+
+    // Kind of one stored cell
+    private static final byte NUMBER = 0;
+    private static final byte TEXT = 1;
+    private static final byte FORMULA = 2;
+
+    // Cached result of a formula
+    private static final byte RESULT_PENDING = 0;
+    private static final byte RESULT_NUMBER = 1;
+    private static final byte RESULT_ERROR = 2;
+
+    public static boolean isIndexed(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+            while (header.hasRemaining() && channel.read(header) > 0) {
+                // Keep reading until the magic number is complete or the file ends
+            }
+            return !header.hasRemaining() && header.getInt(0) == MAGIC;
+        }
+    }
+
+    // Patches the file if the sheet was last loaded from or saved to it, otherwise writes it in full; from
+    // then on the sheet tracks the blocks it changes for the next save to the file
+    public static void save(Spreadsheet spreadsheet, Path path) throws IOException {
+        Set<Long> changed = spreadsheet.takeChangedBlocks(path);
+        try {
+            if (changed != null && Files.exists(path)) {
+                patch(spreadsheet, changed, path);
+            } else {
+                spreadsheet.trackChangedBlocks(path);
+                write(spreadsheet.snapshot(), path);
+            }
+        } catch (IOException | RuntimeException e) {
+            spreadsheet.trackChangedBlocks(null); // The file is in an unknown state, the next save rewrites it
+            throw e;
+        }
+    }
+
+    // Streams the snapshot block by block, each block's record is written as soon as its cells are gathered
+    // and only the index is held until the end
+    public static void write(SpreadsheetSnapshot snapshot, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Index index = new Index(HEADER_SIZE, 0);
+            BlockCells block = new BlockCells();
+            long[] current = {-1, HEADER_SIZE}; // Key of the block being gathered, end of the records
+            try {
+                snapshot.forEachCell((row, col, cell) -> {
+                    long key = CellStore.blockKey(row, col);
+                    if (key != current[0]) {
+                        current[1] = writeRecord(channel, index, current[0], block, current[1]);
+                        current[0] = key;
+                    }
+                    if (!cell.isEmpty()) {
+                        block.add(CellStore.indexInBlock(row, col), cell);
+                    }
+                });
+                current[1] = writeRecord(channel, index, current[0], block, current[1]);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            index.offset = current[1];
+            index.capacity = index.count;
+            writeFully(channel, index.encode(0, index.capacity), index.offset);
+            writeFully(channel, index.encodeHeader(), 0);
+            channel.force(false);
+        }
+    }
+
+    // Writes the gathered cells of a block at the end of the records, if it has any, and starts the next
+    // block; returns the new end of the records
+    private static long writeRecord(FileChannel channel, Index index, long key, BlockCells block, long end) {
+        if (block.size == 0) {
+            return end;
+        }
+        ByteBuffer record = encode(block);
+        int capacity = slotCapacity(record.remaining());
+        index.add(key, end, record.remaining(), capacity, checksum(record));
+        try {
+            writeFully(channel, record, end);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        block.size = 0;
+        return end + capacity;
+    }
+
+    // Writes the records of the changed blocks and then the whole index to free space, forces them, and only
+    // then commits them by rewriting the header. Space left free past the end is cut off after the commit
+    static void patch(Spreadsheet spreadsheet, Set<Long> changed, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            Index index = readIndex(channel, path);
+            FreeSpace space = new FreeSpace(index);
+            long[] keys = changed.stream().mapToLong(Long::longValue).sorted().toArray();
+            for (long key : keys) {
+                ByteBuffer record = encode(liveCells(spreadsheet.getCellStore(), key));
+                int length = record.remaining();
+                int capacity = slotCapacity(length);
+                int checksum = checksum(record);
+                long offset = space.allocate(capacity);
+                writeFully(channel, record, offset);
+                Integer entry = index.find(key);
+                if (entry == null) {
+                    index.add(key, offset, length, capacity, checksum);
+                } else {
+                    index.offsets[entry] = offset;
+                    index.lengths[entry] = length;
+                    index.capacities[entry] = capacity;
+                    index.checksums[entry] = checksum;
+                }
+            }
+            index.capacity = index.count;
+            index.offset = space.allocate((long) index.capacity * ENTRY_SIZE);
+            writeFully(channel, index.encode(0, index.capacity), index.offset);
+            channel.force(false);
+
+            writeFully(channel, index.encodeHeader(), 0);
+            channel.force(false);
+            if (channel.size() > space.end) {
+                channel.truncate(space.end);
+            }
+        }
+    }
+
+    public static Spreadsheet read(Path path) throws IOException {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Index index = readIndex(channel, path);
+            List<Cell> formulaCells = new ArrayList<>();
+            List<Cell> pending = new ArrayList<>();
+            for (int entry = 0; entry < index.count; entry++) {
+                ByteBuffer record = readAt(channel, index.offsets[entry], index.lengths[entry], path);
+                if (checksum(record) != index.checksums[entry]) {
+                    throw new IOException("Corrupt block at offset " + index.offsets[entry] + ": " + path);
+                }
+                decode(index.keys[entry], record, spreadsheet, formulaCells, pending);
+            }
+
+            // The graph is derived from the formulas, only formulas without a saved result are evaluated
+            Set<Coordinate> dependencies = new LinkedHashSet<>();
+            List<RangeNode> ranges = new ArrayList<>();
+            for (Cell cell : formulaCells) {
+                dependencies.clear();
+                ranges.clear();
+                Spreadsheet.collectDependencies((FormulaContent) cell.getContent(), dependencies, ranges);
+                for (Coordinate dependency : dependencies) {
+                    spreadsheet.addStoredDependency(dependency.row(), dependency.col(), cell);
+                }
+                for (RangeNode range : ranges) {
+                    spreadsheet.addStoredRangeDependency(range, cell);
+                }
+            }
+            spreadsheet.recalculate(pending);
+        }
+        spreadsheet.trackChangedBlocks(path);
+        return spreadsheet;
+    }
+
+    // Current cells of one block of the live sheet
+    private static BlockCells liveCells(CellStore store, long key) {
+        BlockCells cells = new BlockCells();
+        CellStore.Block block = store.getBlock(CellStore.blockRowOf(key), CellStore.blockColOf(key));
+        if (block == null) {
+            return cells;
+        }
+        for (int word = 0; word < CellStore.BLOCK_COLS; word++) {
+            for (long bits = block.occupied[word]; bits != 0; bits &= bits - 1) {
+                int index = word * CellStore.BLOCK_ROWS + Long.numberOfTrailingZeros(bits);
+                Cell cell = block.cell(index);
+                if (!cell.isEmpty()) {
+                    cells.add(index, CellSnapshot.of(cell));
+                }
+            }
+        }
+        return cells;
+    }
+
+    // Cells are written in slot order, so a block encodes to the same bytes however its cells were gathered
+    private static ByteBuffer encode(BlockCells cells) {
+        CellSnapshot[] slots = new CellSnapshot[CellStore.BLOCK_SIZE];
+        for (int i = 0; i < cells.size; i++) {
+            slots[cells.indexes[i]] = cells.cells[i];
+        }
+        Output out = new Output();
+        out.putInt(cells.size);
+        for (int index = 0; index < slots.length; index++) {
+            CellSnapshot cell = slots[index];
+            if (cell == null) {
+                continue;
+            }
+            out.putShort((short) index);
+            if (cell.content() instanceof NumericContent numericContent) {
+                out.putByte(NUMBER);
+                out.putDouble(numericContent.getNumber());
+            } else if (cell.content() instanceof FormulaContent formulaContent) {
+                out.putByte(FORMULA);
+                out.putFormula(formulaContent);
+                if (cell.state() == Cell.ValueState.PENDING) {
+                    out.putByte(RESULT_PENDING);
+                } else if (cell.state() == Cell.ValueState.ERROR) {
+                    out.putByte(RESULT_ERROR);
+                    out.putString(cell.error() == null ? "" : cell.error()); // No message is stored as empty
+                } else {
+                    out.putByte(RESULT_NUMBER);
+                    out.putDouble(cell.value());
+                }
+            } else {
+                out.putByte(TEXT);
+                out.putString(cell.content().toString());
+            }
+        }
+        return out.buffer.flip();
+    }
+
+    private static void decode(long key, ByteBuffer record, Spreadsheet spreadsheet, List<Cell> formulaCells,
+                               List<Cell> pending) throws IOException {
+        int firstRow = CellStore.blockRowOf(key) * CellStore.BLOCK_ROWS;
+        int firstCol = CellStore.blockColOf(key) * CellStore.BLOCK_COLS;
+        int count = record.getInt();
+        for (int i = 0; i < count; i++) {
+            int index = record.getShort();
+            int row = firstRow + index % CellStore.BLOCK_ROWS;
+            int col = firstCol + index / CellStore.BLOCK_ROWS;
+            byte kind = record.get();
+            switch (kind) {
+                case NUMBER -> spreadsheet.storeCellContent(row, col, new NumericContent(record.getDouble()));
+                case TEXT -> spreadsheet.storeCellContent(row, col, new TextContent(getString(record)));
+                case FORMULA -> {
+                    FormulaContent formulaContent = new FormulaContent(FormulaTrees.read(record));
+                    Cell cell = spreadsheet.storeCellContent(row, col, formulaContent);
+                    byte result = record.get();
+                    if (result == RESULT_NUMBER) {
+                        cell.setValue(record.getDouble());
+                        formulaContent.markValid(spreadsheet.getRecalculationEpoch());
+                        spreadsheet.valueChanged(cell, Cell.ValueState.PENDING, 0);
+                    } else if (result == RESULT_ERROR) {
+                        String error = getString(record);
+                        cell.setError(error.isEmpty() ? null : error);
+                        formulaContent.markValid(spreadsheet.getRecalculationEpoch());
+                        spreadsheet.valueChanged(cell, Cell.ValueState.PENDING, 0);
+                    } else {
+                        pending.add(cell);
+                    }
+                    formulaCells.add(cell);
+                }
+                default -> throw new IOException("Unknown cell kind " + kind);
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Every offset, length and count is checked against the file before it is used
+    private static Index readIndex(FileChannel channel, Path path) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer header = readAt(channel, 0, HEADER_SIZE, path);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not an indexed workbook: " + path);
+        }
+        short version = header.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported workbook version " + version + ": " + path);
+        }
+        header.getShort(); // Reserved
+        Index index = new Index(header.getLong(), header.getInt());
+        int count = header.getInt();
+        long indexBytes = (long) count * ENTRY_SIZE;
+        if (count < 0 || index.capacity < count || index.offset < HEADER_SIZE || indexBytes > Integer.MAX_VALUE
+                || index.offset + indexBytes > fileSize) {
+            throw new IOException("Corrupt index of " + count + " entries at offset " + index.offset + ": " + path);
+        }
+        ByteBuffer entries = readAt(channel, index.offset, (int) indexBytes, path);
+        for (int i = 0; i < count; i++) {
+            long key = entries.getLong();
+            long offset = entries.getLong();
+            int length = entries.getInt();
+            int capacity = entries.getInt();
+            int checksum = entries.getInt();
+            entries.getInt(); // Reserved
+            if (offset < HEADER_SIZE || length < 0 || capacity < length || offset + length > fileSize) {
+                throw new IOException("Corrupt index entry " + i + " at offset " + offset + ": " + path);
+            }
+            index.add(key, offset, length, capacity, checksum);
+        }
+        return index;
+    }
+
+    private static ByteBuffer readAt(FileChannel channel, long position, int length, Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of workbook: " + path);
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+
+    // Slot sizes come in powers of two with room for the record to grow by half, so the slots a patch leaves
+    // free fit the records of later patches
+    private static int slotCapacity(int length) {
+        return Math.max(MIN_SLOT, Integer.highestOneBit(length + length / 2) << 1);
+    }
+
+    private static int checksum(ByteBuffer record) {
+        CRC32C checksum = new CRC32C();
+        checksum.update(record.duplicate());
+        return (int) checksum.getValue();
+    }
+
+    // Index entries in file order
+    private static class Index {
+        long offset;
+        int capacity;
+        int count;
+        long[] keys = new long[16];
+        long[] offsets = new long[16];
+        int[] lengths = new int[16];
+        int[] capacities = new int[16];
+        int[] checksums = new int[16];
+        private final Map<Long, Integer> entries = new HashMap<>();
+
+        Index(long offset, int capacity) {
+            this.offset = offset;
+            this.capacity = capacity;
+        }
+
+        Integer find(long key) {
+            return entries.get(key);
+        }
+
+        int add(long key, long recordOffset, int length, int slotCapacity, int checksum) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                capacities = Arrays.copyOf(capacities, count * 2);
+                checksums = Arrays.copyOf(checksums, count * 2);
+            }
+            keys[count] = key;
+            offsets[count] = recordOffset;
+            lengths[count] = length;
+            capacities[count] = slotCapacity;
+            checksums[count] = checksum;
+            entries.put(key, count);
+            return count++;
+        }
+
+        // Entries from one position to another, positions past the last entry are left zero
+        ByteBuffer encode(int from, int to) {
+            ByteBuffer buffer = ByteBuffer.allocate((to - from) * ENTRY_SIZE);
+            for (int i = from; i < Math.min(to, count); i++) {
+                buffer.putLong(keys[i]).putLong(offsets[i]).putInt(lengths[i]).putInt(capacities[i])
+                        .putInt(checksums[i]).putInt(0);
+            }
+            return buffer.position(0);
+        }
+
+        ByteBuffer encodeHeader() {
+            return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putShort(VERSION).putShort((short) 0)
+                    .putLong(offset).putInt(capacity).putInt(count).flip();
+        }
+    }
+
+    // Space of the file the committed index does not use: the gaps between the header, the slots and the
+    // index, then everything from the end of the last of them. Slots a patch replaces are still in use until
+    // its header is written, so they only become free to the next patch
+    private static class FreeSpace {
+        private final List<long[]> gaps = new ArrayList<>(); // Start and end of each gap
+        long end;
+
+        FreeSpace(Index index) {
+            long[][] extents = new long[index.count + 1][];
+            for (int i = 0; i < index.count; i++) {
+                extents[i] = new long[]{index.offsets[i], index.offsets[i] + index.capacities[i]};
+            }
+            extents[index.count] = new long[]{index.offset, index.offset + (long) index.capacity * ENTRY_SIZE};
+            Arrays.sort(extents, Comparator.comparingLong(extent -> extent[0]));
+            end = HEADER_SIZE;
+            for (long[] extent : extents) {
+                if (extent[0] > end) {
+                    gaps.add(new long[]{end, extent[0]});
+                }
+                end = Math.max(end, extent[1]);
+            }
+        }
+
+        // First gap the bytes fit in, or the end
+        long allocate(long bytes) {
+            for (long[] gap : gaps) {
+                if (gap[1] - gap[0] >= bytes) {
+                    gap[0] += bytes;
+                    return gap[0] - bytes;
+                }
+            }
+            end += bytes;
+            return end - bytes;
+        }
+    }
+
+    // Stored cells of one block, by slot in the block
+    private static class BlockCells {
+        int[] indexes = new int[16];
+        CellSnapshot[] cells = new CellSnapshot[16];
+        int size;
+
+        void add(int index, CellSnapshot cell) {
+            if (size == indexes.length) {
+                indexes = Arrays.copyOf(indexes, size * 2);
+                cells = Arrays.copyOf(cells, size * 2);
+            }
+            indexes[size] = index;
+            cells[size] = cell;
+            size++;
+        }
+    }
+
+    // Growable heap buffer a record is encoded into
+    private static class Output {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        void putByte(byte value) {
+            ensure(Byte.BYTES).put(value);
+        }
+
+        void putShort(short value) {
+            ensure(Short.BYTES).putShort(value);
+        }
+
+        void putInt(int value) {
+            ensure(Integer.BYTES).putInt(value);
+        }
+
+        void putDouble(double value) {
+            ensure(Double.BYTES).putDouble(value);
+        }
+
+        void putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            ensure(bytes.length).put(bytes);
+        }
+
+        void putFormula(FormulaContent formulaContent) {
+            FormulaNode root = formulaContent.getRoot();
+            FormulaTrees.write(root, formulaContent.getAnchorRow(), formulaContent.getAnchorCol(),
+                    ensure(FormulaTrees.size(root)));
+        }
+
+        private ByteBuffer ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                buffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes)).put(buffer.flip());
+            }
+            return buffer;
+        }
+    }
+}
@@ -62,12 +62,12 @@ public class Main {
         Content cellContent;
         if (content.startsWith("=")) {
                 System.out.println("Parsing: " + content);
-                FormulaNode rootNode = FormulaParser.parse(content);
-                if (rootNode == null){
+                FormulaContent formulaContent = spreadsheet.parseFormula(content, coordinate);
+                if (formulaContent == null){
                     cellContent = new TextContent("#ERROR");
                 }
                 else{
-                    cellContent = new FormulaContent(rootNode);
+                    cellContent = formulaContent;
                 }
         } else if (isNumeric(content)) {
             cellContent = new NumericContent(Double.parseDouble(content));
@@ -9,26 +9,29 @@ class MaxNode extends FormulaNode {
     }
 
     @Override
-    public double evaluate(Spreadsheet spreadsheet) {
+    public double evaluate(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
         if (getChildren().isEmpty()) {
             throw new IllegalStateException("MaxNode requires at least one operand.");
         }
 
-        double max = Double.NEGATIVE_INFINITY; // Start with the smallest possible value
+        RangeAggregate max = new RangeAggregate(RangeAggregate.MAX);
         for (FormulaNode child : getChildren()) {
-            double value = child.evaluate(spreadsheet);
-            max = Math.max(max, value);
+            if (child instanceof RangeNode range) {
+                max.addRange(spreadsheet, range, anchorRow, anchorCol);
+            } else {
+                max.add(child.evaluate(spreadsheet, anchorRow, anchorCol));
+            }
         }
-        return max;
+        return max.getResult();
     }
 
     @Override
-    public String toString() {
+    public String toString(int anchorRow, int anchorCol) {
         StringBuilder result = new StringBuilder("MAX(");
         List<FormulaNode> children = getChildren();
 
         for (int i = 0; i < children.size(); i++) {
-            result.append(children.get(i).toString());
+            result.append(children.get(i).toString(anchorRow, anchorCol));
             if (i < children.size() - 1) {
                 result.append(", ");
             }
@@ -9,29 +9,29 @@ class MeanNode extends FormulaNode {
     }
 
     @Override
-    public double evaluate(Spreadsheet spreadsheet) {
+    public double evaluate(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
         if (getChildren().isEmpty()) {
             throw new IllegalStateException("MeanNode requires at least one operand.");
         }
 
-        double sum = 0;
-        int count = 0;
-
+        RangeAggregate sum = new RangeAggregate(RangeAggregate.SUM);
         for (FormulaNode child : getChildren()) {
-            sum += child.evaluate(spreadsheet);
-            count++;
+            if (child instanceof RangeNode range) {
+                sum.addRange(spreadsheet, range, anchorRow, anchorCol);
+            } else {
+                sum.add(child.evaluate(spreadsheet, anchorRow, anchorCol));
+            }
         }
-
-        return sum / count;
+        return sum.getResult() / sum.getCount();
     }
 
     @Override
-    public String toString() {
-        StringBuilder result = new StringBuilder("MEAN(");
+    public String toString(int anchorRow, int anchorCol) {
+        StringBuilder result = new StringBuilder("PROMEDIO(");
         List<FormulaNode> children = getChildren();
 
         for (int i = 0; i < children.size(); i++) {
-            result.append(children.get(i).toString());
+            result.append(children.get(i).toString(anchorRow, anchorCol));
             if (i < children.size() - 1) {
                 result.append(", ");
             }
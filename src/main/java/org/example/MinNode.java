@@ -9,26 +9,29 @@ class MinNode extends FormulaNode {
     }
 
     @Override
-    public double evaluate(Spreadsheet spreadsheet) {
+    public double evaluate(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
         if (getChildren().isEmpty()) {
             throw new IllegalStateException("MinNode requires at least one operand.");
         }
 
-        double min = Double.POSITIVE_INFINITY;
+        RangeAggregate min = new RangeAggregate(RangeAggregate.MIN);
         for (FormulaNode child : getChildren()) {
-            double value = child.evaluate(spreadsheet);
-            min = Math.min(min, value);
+            if (child instanceof RangeNode range) {
+                min.addRange(spreadsheet, range, anchorRow, anchorCol);
+            } else {
+                min.add(child.evaluate(spreadsheet, anchorRow, anchorCol));
+            }
         }
-        return min;
+        return min.getResult();
     }
 
     @Override
-    public String toString() {
+    public String toString(int anchorRow, int anchorCol) {
         StringBuilder result = new StringBuilder("MIN(");
         List<FormulaNode> children = getChildren();
 
         for (int i = 0; i < children.size(); i++) {
-            result.append(children.get(i).toString());
+            result.append(children.get(i).toString(anchorRow, anchorCol));
             if (i < children.size() - 1) {
                 result.append(", ");
             }
@@ -9,21 +9,21 @@ class MultiplicationNode extends FormulaNode {
     }
 
     @Override
-    public double evaluate(Spreadsheet spreadsheet) {
+    public double evaluate(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
         double result = 1; // Multiplicative identity
         for (FormulaNode child : getChildren()) {
-            result *= child.evaluate(spreadsheet);
+            result *= child.evaluate(spreadsheet, anchorRow, anchorCol);
         }
         return result;
     }
 
     @Override
-    public String toString() {
+    public String toString(int anchorRow, int anchorCol) {
         StringBuilder result = new StringBuilder("(");
         List<FormulaNode> children = getChildren();
 
         for (int i = 0; i < children.size(); i++) {
-            result.append(children.get(i).toString());
+            result.append(children.get(i).toString(anchorRow, anchorCol));
             if (i < children.size() - 1) {
                 result.append(" * ");
             }
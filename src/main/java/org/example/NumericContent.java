@@ -7,6 +7,10 @@ class NumericContent extends Content {
         this.number = number;
     }
 
+    public double getNumber() {
+        return number;
+    }
+
     @Override
     public String toString() {
         return Double.toString(number);
@@ -0,0 +1,218 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Cell store for sheets larger than the heap. At most a fixed number of blocks is held in memory, the most
+// recently used ones; a block that holds only plain numbers nothing refers to is written to a page of a
+// memory-mapped file when it falls out of that set and read back when it is next touched. Blocks holding
+// text, formulas or cells referenced by formulas stay in memory, their cells are part of the dependency
+// graph. A page holds the numeric bitmap and the values of one block, so the aggregate kernels run on a
+// paged-in block as on any other, and its cells are only created if they are asked for one by one.
+//
+// The file is working storage, not a save format: it is overwritten when the store is created. The file is
+// mapped in regions since one mapping is limited to 2 GiB; mapped pages live outside the heap and the
+// operating system pages them in and out, so the heap holds the hot blocks plus a page number per block.
+// Regions are mapped as MappedByteBuffers rather than FFM memory segments: a region is a few MiB, far from
+// the 2 GiB limit of a buffer, a page moves with the same bulk copy either way, and regions stay mapped as
+// long as the store lives, so the deterministic unmapping of an arena would gain nothing.
+// All access is synchronized, reads included, since reading may page blocks in and out.
+class PagedCellStore extends CellStore {
+    private static final int PAGE_WORDS = BLOCK_COLS + BLOCK_SIZE; // Numeric bitmap, then the values
+    private static final int PAGE_BYTES = PAGE_WORDS * Long.BYTES;
+    private static final int REGION_PAGES = 1024;
+
+    private final Path path;
+    private final int cachedBlocks;
+    private final Map<Long, Integer> pages = new HashMap<>(); // Page of every block written out once
+    private final List<LongBuffer> regionWords = new ArrayList<>();
+    private final List<DoubleBuffer> regionValues = new ArrayList<>();
+    private int pagedOut; // Blocks that are only in the file
+
+    PagedCellStore(Path path, int cachedBlocks) throws IOException {
+        super(new LinkedHashMap<>(16, 0.75f, true)); // Access order, eldest first
+        if (cachedBlocks < 1) {
+            throw new IllegalArgumentException("At least one block must be cached.");
+        }
+        this.path = path;
+        this.cachedBlocks = cachedBlocks;
+        Files.write(path, new byte[0]); // Created empty, regions are mapped as pages are first needed
+    }
+
+    @Override
+    public synchronized Cell get(int row, int col) {
+        return super.get(row, col);
+    }
+
+    @Override
+    public synchronized void put(int row, int col, Cell cell) {
+        super.put(row, col, cell);
+    }
+
+    @Override
+    public synchronized void updateNumber(int row, int col, Content content) {
+        super.updateNumber(row, col, content);
+    }
+
+    @Override
+    public synchronized void forEach(CellVisitor visitor) {
+        super.forEach(visitor);
+    }
+
+    @Override
+    synchronized Block getBlock(int blockRow, int blockCol) {
+        return super.getBlock(blockRow, blockCol);
+    }
+
+    @Override
+    synchronized long[] blockKeysWithin(int firstBlockRow, int firstBlockCol, int lastBlockRow, int lastBlockCol) {
+        return super.blockKeysWithin(firstBlockRow, firstBlockCol, lastBlockRow, lastBlockCol);
+    }
+
+    @Override
+    public synchronized int getBlockCount() {
+        return blocks.size() + pagedOut;
+    }
+
+    // Blocks currently held in memory
+    synchronized int getResidentBlockCount() {
+        return blocks.size();
+    }
+
+    @Override
+    Block findBlock(long key) {
+        Block block = blocks.get(key);
+        if (block == null && pages.containsKey(key)) {
+            block = readPage(key, pages.get(key));
+            blocks.put(key, block);
+            pagedOut--;
+            evictColdBlocks();
+        }
+        return block;
+    }
+
+    @Override
+    Block createBlock(long key) {
+        Block block = super.createBlock(key);
+        evictColdBlocks();
+        return block;
+    }
+
+    @Override
+    synchronized void reattach(int row, int col, Cell cell) {
+        Block block = findBlock(blockKey(row, col));
+        int index = indexInBlock(row, col);
+        if (block != null && block.cells[index] != cell) {
+            block.cells[index] = cell;
+            block.dirty = true;
+        }
+    }
+
+    @Override
+    synchronized long[] blockKeys() {
+        long[] keys = new long[blocks.size() + pagedOut];
+        int count = 0;
+        for (long key : blocks.keySet()) {
+            keys[count++] = key;
+        }
+        for (long key : pages.keySet()) {
+            if (!blocks.containsKey(key)) {
+                keys[count++] = key;
+            }
+        }
+        return keys;
+    }
+
+    // Writes out the least recently used blocks that can leave memory until the cache is back to its size.
+    // The most recent block is the one being handed out and always stays
+    private void evictColdBlocks() {
+        if (blocks.size() <= cachedBlocks) {
+            return;
+        }
+        List<Long> pinned = new ArrayList<>();
+        Iterator<Map.Entry<Long, Block>> entries = blocks.entrySet().iterator();
+        int remaining = blocks.size();
+        while (blocks.size() > cachedBlocks && remaining-- > 1) {
+            Map.Entry<Long, Block> entry = entries.next();
+            if (!canPageOut(entry.getValue())) {
+                pinned.add(entry.getKey());
+                continue;
+            }
+            if (entry.getValue().dirty || !pages.containsKey(entry.getKey())) {
+                writePage(entry.getKey(), entry.getValue());
+            }
+            entries.remove();
+            pagedOut++;
+        }
+        // Blocks that have to stay are moved out of the way of the next eviction
+        for (long key : pinned) {
+            blocks.get(key);
+        }
+    }
+
+    private static boolean canPageOut(Block block) {
+        for (int word = 0; word < BLOCK_COLS; word++) {
+            if (block.occupied[word] != block.numeric[word]) {
+                return false; // Text, formulas and cells kept only for dependency tracking
+            }
+        }
+        for (Cell cell : block.cells) {
+            if (cell != null && !cell.getDependents().isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writePage(long key, Block block) {
+        Integer page = pages.get(key);
+        if (page == null) {
+            page = pages.size();
+            pages.put(key, page);
+        }
+        int region = page / REGION_PAGES;
+        int offset = (page % REGION_PAGES) * PAGE_WORDS;
+        regionWords(region).put(offset, block.numeric);
+        regionValues.get(region).put(offset + BLOCK_COLS, block.values);
+    }
+
+    private Block readPage(long key, int page) {
+        int region = page / REGION_PAGES;
+        int offset = (page % REGION_PAGES) * PAGE_WORDS;
+        Block block = new Block(key);
+        regionWords(region).get(offset, block.numeric);
+        regionValues.get(region).get(offset + BLOCK_COLS, block.values);
+        System.arraycopy(block.numeric, 0, block.occupied, 0, BLOCK_COLS);
+        return block;
+    }
+
+    // Mapping a region past the end of the file grows the file to hold it
+    private LongBuffer regionWords(int region) {
+        while (regionWords.size() <= region) {
+            long start = (long) regionWords.size() * REGION_PAGES * PAGE_BYTES;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, start, (long) REGION_PAGES * PAGE_BYTES);
+                mapped.order(ByteOrder.nativeOrder());
+                regionWords.add(mapped.asLongBuffer());
+                regionValues.add(mapped.asDoubleBuffer());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot map page file " + path, e);
+            }
+        }
+        return regionWords.get(region);
+    }
+}
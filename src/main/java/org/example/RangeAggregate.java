@@ -0,0 +1,146 @@
+package org.example;
+
+// Running SUMA/MIN/MAX of the values fed to an aggregate function, with the number of values seen.
+// Ranges are consumed one column segment at a time: plain numbers are read straight from the columnar
+// double[] of the block, a contiguous run of them through an unrolled loop with independent accumulators
+// that the JIT keeps in registers, and only formulas and other content go through their cells.
+final class RangeAggregate {
+    static final int SUM = 0;
+    static final int MIN = 1;
+    static final int MAX = 2;
+
+    private int kind;
+    private double result;
+    private int count;
+
+    RangeAggregate(int kind) {
+        reset(kind);
+    }
+
+    // Starts over for another function, so compiled formulas can reuse one aggregate per nesting level
+    void reset(int kind) {
+        this.kind = kind;
+        this.result = kind == MIN ? Double.POSITIVE_INFINITY : kind == MAX ? Double.NEGATIVE_INFINITY : 0;
+        this.count = 0;
+    }
+
+    public void add(double value) {
+        switch (kind) {
+            case MIN -> result = Math.min(result, value);
+            case MAX -> result = Math.max(result, value);
+            default -> result += value;
+        }
+        count++;
+    }
+
+    // Takes the running aggregates of the range when a formula keeps them, scans it otherwise
+    public void addRange(Spreadsheet spreadsheet, RangeNode range, int anchorRow, int anchorCol) {
+        RangeSummary summary = range.summary(spreadsheet, anchorRow, anchorCol);
+        if (summary == null || !summary.foldInto(this, spreadsheet)) {
+            addRange(spreadsheet, range.iterator(spreadsheet, anchorRow, anchorCol));
+        }
+    }
+
+    // Same, scanning the range with a cursor the caller reuses rather than a new one
+    void addRange(Spreadsheet spreadsheet, RangeNode range, int anchorRow, int anchorCol, RangeIterator cursor) {
+        RangeSummary summary = range.summary(spreadsheet, anchorRow, anchorCol);
+        if (summary == null || !summary.foldInto(this, spreadsheet)) {
+            addRange(spreadsheet, range.iterator(spreadsheet, anchorRow, anchorCol, cursor));
+        }
+    }
+
+    // Combines the aggregate of a part of the values, computed elsewhere, with this one
+    void merge(double partialResult, int partialCount) {
+        switch (kind) {
+            case MIN -> result = Math.min(result, partialResult);
+            case MAX -> result = Math.max(result, partialResult);
+            default -> result += partialResult;
+        }
+        count += partialCount;
+    }
+
+    public void addRange(Spreadsheet spreadsheet, RangeIterator cells) {
+        while (cells.nextSegment()) {
+            CellStore.Block block = cells.getBlock();
+            int offset = cells.getSegmentOffset();
+            long mask = cells.getSegmentMask();
+            long numbers = block.numeric[offset / CellStore.BLOCK_ROWS] & mask;
+            if (numbers != 0) {
+                int first = Long.numberOfTrailingZeros(numbers);
+                int span = Long.SIZE - Long.numberOfLeadingZeros(numbers) - first;
+                if (Long.bitCount(numbers) == span) {
+                    addAll(block.values, offset + first, offset + first + span);
+                } else {
+                    for (long bits = numbers; bits != 0; bits &= bits - 1) {
+                        add(block.values[offset + Long.numberOfTrailingZeros(bits)]);
+                    }
+                }
+            }
+            for (long bits = block.occupied[offset / CellStore.BLOCK_ROWS] & mask & ~numbers; bits != 0; bits &= bits - 1) {
+                Cell cell = block.cells[offset + Long.numberOfTrailingZeros(bits)];
+                if (!cell.isEmpty()) { // Cells kept only for dependency tracking hold no value
+                    add(CellNode.valueOf(spreadsheet, cell));
+                }
+            }
+        }
+    }
+
+    private void addAll(double[] values, int from, int to) {
+        int i = from;
+        double a0, a1, a2, a3;
+        switch (kind) {
+            case MIN -> {
+                a0 = a1 = a2 = a3 = result;
+                for (; i + 3 < to; i += 4) {
+                    a0 = Math.min(a0, values[i]);
+                    a1 = Math.min(a1, values[i + 1]);
+                    a2 = Math.min(a2, values[i + 2]);
+                    a3 = Math.min(a3, values[i + 3]);
+                }
+                for (; i < to; i++) {
+                    a0 = Math.min(a0, values[i]);
+                }
+                result = Math.min(Math.min(a0, a1), Math.min(a2, a3));
+            }
+            case MAX -> {
+                a0 = a1 = a2 = a3 = result;
+                for (; i + 3 < to; i += 4) {
+                    a0 = Math.max(a0, values[i]);
+                    a1 = Math.max(a1, values[i + 1]);
+                    a2 = Math.max(a2, values[i + 2]);
+                    a3 = Math.max(a3, values[i + 3]);
+                }
+                for (; i < to; i++) {
+                    a0 = Math.max(a0, values[i]);
+                }
+                result = Math.max(Math.max(a0, a1), Math.max(a2, a3));
+            }
+            default -> {
+                a0 = a1 = a2 = a3 = 0;
+                for (; i + 3 < to; i += 4) {
+                    a0 += values[i];
+                    a1 += values[i + 1];
+                    a2 += values[i + 2];
+                    a3 += values[i + 3];
+                }
+                for (; i < to; i++) {
+                    a0 += values[i];
+                }
+                result += (a0 + a1) + (a2 + a3);
+            }
+        }
+        count += to - from;
+    }
+
+    int getKind() {
+        return kind;
+    }
+
+    public double getResult() {
+        return result;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,136 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Spatial index from the ranges used in formulas to the formula cells that read them. The sheet is
+// cut into coarse buckets and each range is registered in every bucket it overlaps, so finding the
+// listeners of a cell only inspects the ranges of one bucket and never expands a range into cells.
+// A range overlapping more than MAX_BUCKETS buckets is kept in a list of wide ranges instead, which every
+// lookup also checks, so registering a range costs the same however far it reaches.
+// Formulas reading the same range share one entry, which also carries the running aggregates of the range.
+class RangeIndex {
+    static final int BUCKET_ROWS = 1024;
+    static final int BUCKET_COLS = 64;
+    static final int MAX_BUCKETS = 16;
+
+    private record Corners(int startRow, int startCol, int endRow, int endCol) {
+    }
+
+    private final Map<Long, Set<RangeSummary>> buckets;
+    private final Set<RangeSummary> wide = new LinkedHashSet<>();
+    private final Map<Corners, RangeSummary> ranges;
+    private final Map<Cell, List<RangeSummary>> rangesByListener;
+
+    public RangeIndex() {
+        buckets = new HashMap<>();
+        ranges = new HashMap<>();
+        rangesByListener = new HashMap<>();
+    }
+
+    public void add(Cell listener, RangeNode range) {
+        Corners corners = new Corners(range.getStartRow(), range.getStartCol(), range.getEndRow(), range.getEndCol());
+        RangeSummary summary = ranges.get(corners);
+        if (summary == null) {
+            summary = new RangeSummary(corners.startRow(), corners.startCol(), corners.endRow(), corners.endCol());
+            ranges.put(corners, summary);
+            if (isWide(summary)) {
+                wide.add(summary);
+            } else {
+                for (int bucketRow = range.getStartRow() / BUCKET_ROWS; bucketRow <= range.getEndRow() / BUCKET_ROWS; bucketRow++) {
+                    for (int bucketCol = range.getStartCol() / BUCKET_COLS; bucketCol <= range.getEndCol() / BUCKET_COLS; bucketCol++) {
+                        buckets.computeIfAbsent(bucketKey(bucketRow, bucketCol), key -> new LinkedHashSet<>()).add(summary);
+                    }
+                }
+            }
+        }
+        summary.addListener(listener);
+        rangesByListener.computeIfAbsent(listener, key -> new ArrayList<>()).add(summary);
+    }
+
+    // Removes every range registered by the listener
+    public void remove(Cell listener) {
+        List<RangeSummary> summaries = rangesByListener.remove(listener);
+        if (summaries == null) {
+            return;
+        }
+        for (RangeSummary summary : summaries) {
+            if (!summary.removeListener(listener)) {
+                continue; // Still read by other formulas
+            }
+            ranges.remove(new Corners(summary.getStartRow(), summary.getStartCol(), summary.getEndRow(), summary.getEndCol()));
+            if (isWide(summary)) {
+                wide.remove(summary);
+                continue;
+            }
+            for (int bucketRow = summary.getStartRow() / BUCKET_ROWS; bucketRow <= summary.getEndRow() / BUCKET_ROWS; bucketRow++) {
+                for (int bucketCol = summary.getStartCol() / BUCKET_COLS; bucketCol <= summary.getEndCol() / BUCKET_COLS; bucketCol++) {
+                    long key = bucketKey(bucketRow, bucketCol);
+                    Set<RangeSummary> bucket = buckets.get(key);
+                    bucket.remove(summary);
+                    if (bucket.isEmpty()) {
+                        buckets.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    // Adds the cells whose ranges contain the given position to the target set
+    public void collectListeners(int row, int col, Set<Cell> target) {
+        Set<RangeSummary> bucket = buckets.get(bucketKey(row / BUCKET_ROWS, col / BUCKET_COLS));
+        if (bucket != null) {
+            collectListeners(bucket, row, col, target);
+        }
+        collectListeners(wide, row, col, target);
+    }
+
+    private static void collectListeners(Set<RangeSummary> summaries, int row, int col, Set<Cell> target) {
+        for (RangeSummary summary : summaries) {
+            if (summary.contains(row, col)) {
+                target.addAll(summary.getListeners());
+            }
+        }
+    }
+
+    // Passes the value change of the cell at the position on to the summaries of the ranges containing it
+    public void valueChanged(int row, int col, Cell.ValueState oldState, double oldValue, Cell.ValueState newState, double newValue) {
+        Set<RangeSummary> bucket = buckets.get(bucketKey(row / BUCKET_ROWS, col / BUCKET_COLS));
+        if (bucket != null) {
+            valueChanged(bucket, row, col, oldState, oldValue, newState, newValue);
+        }
+        valueChanged(wide, row, col, oldState, oldValue, newState, newValue);
+    }
+
+    private static void valueChanged(Set<RangeSummary> summaries, int row, int col, Cell.ValueState oldState,
+                                     double oldValue, Cell.ValueState newState, double newValue) {
+        for (RangeSummary summary : summaries) {
+            if (summary.contains(row, col)) {
+                summary.valueChanged(oldState, oldValue, newState, newValue);
+            }
+        }
+    }
+
+    // Summary of a range some formula has registered, or null
+    public RangeSummary find(int startRow, int startCol, int endRow, int endCol) {
+        return ranges.get(new Corners(startRow, startCol, endRow, endCol));
+    }
+
+    public boolean isEmpty() {
+        return rangesByListener.isEmpty();
+    }
+
+    private static boolean isWide(RangeSummary summary) {
+        long bucketRows = summary.getEndRow() / BUCKET_ROWS - summary.getStartRow() / BUCKET_ROWS + 1;
+        long bucketCols = summary.getEndCol() / BUCKET_COLS - summary.getStartCol() / BUCKET_COLS + 1;
+        return bucketRows * bucketCols > MAX_BUCKETS;
+    }
+
+    private static long bucketKey(int bucketRow, int bucketCol) {
+        return ((long) bucketRow << 32) | (bucketCol & 0xffffffffL);
+    }
+}
@@ -1,59 +1,186 @@
 package org.example;
 
-import java.util.Iterator;
-import java.util.NoSuchElementException;
+// Cursor over the populated cells of a rectangular range, yielding (row, col, value) without boxing or
+// creating Strings. Only allocated blocks are visited, and inside a block only the occupied slots, so a
+// sparse range costs time proportional to the cells it holds rather than to its area. Cells come block by
+// block, blocks column by column and each block one column segment at a time, top to bottom.
+public class RangeIterator {
+    private Spreadsheet spreadsheet;
+    private CellStore store;
+    private int startRow, startCol, endRow, endCol;
 
-public class RangeIterator implements Iterator<String> {
-    private final char startCol, endCol;
-    private final int startRow, endRow;
-    private char currentCol;
-    private int currentRow;
-    private final Spreadsheet spreadsheet;
+    // Blocks still to visit: every block position of the range, or the allocated ones when there are fewer
+    private long[] blockKeys;
+    private int blockIndex;
+    private int firstBlockRow, lastBlockRow, lastBlockCol;
+    private int blockRow, blockCol;
+
+    // Position inside the current block
+    private CellStore.Block block;
+    private int blockFirstRow, blockFirstCol;
+    private long rowMask;
+    private int word, lastWord; // Block column of the current segment and the last one inside the range
+    private long bits;
+
+    private Cell cell;
+    private int row, col;
 
     public RangeIterator(String startCell, String endCell, Spreadsheet spreadsheet) {
-        this.startCol = startCell.charAt(0);
-        this.startRow = Integer.parseInt(startCell.substring(1));
-        this.endCol = endCell.charAt(0);
-        this.endRow = Integer.parseInt(endCell.substring(1));
-        this.currentCol = this.startCol;
-        this.currentRow = this.startRow;
+        this(requireCoordinate(startCell), requireCoordinate(endCell), spreadsheet);
+    }
+
+    public RangeIterator(Coordinate startCell, Coordinate endCell, Spreadsheet spreadsheet) {
+        this(spreadsheet, Math.min(startCell.row(), endCell.row()), Math.min(startCell.col(), endCell.col()),
+                Math.max(startCell.row(), endCell.row()), Math.max(startCell.col(), endCell.col()));
+    }
+
+    RangeIterator(Spreadsheet spreadsheet, int startRow, int startCol, int endRow, int endCol) {
+        reset(spreadsheet, startRow, startCol, endRow, endCol);
+    }
+
+    // A cursor over nothing until it is reset, for callers that reuse one across ranges
+    RangeIterator() {
+    }
+
+    // Starts over on another range
+    void reset(Spreadsheet spreadsheet, int startRow, int startCol, int endRow, int endCol) {
         this.spreadsheet = spreadsheet;
-        findNextNonEmptyCell(); 
+        this.store = spreadsheet.getCellStore();
+        this.startRow = startRow;
+        this.startCol = startCol;
+        // Nothing is stored beyond the bounding box
+        this.endRow = Math.min(endRow, store.getRowCount() - 1);
+        this.endCol = Math.min(endCol, store.getColumnCount() - 1);
+
+        firstBlockRow = startRow / CellStore.BLOCK_ROWS;
+        lastBlockRow = this.endRow < startRow ? -1 : this.endRow / CellStore.BLOCK_ROWS;
+        lastBlockCol = this.endCol < startCol ? -1 : this.endCol / CellStore.BLOCK_COLS;
+        blockRow = firstBlockRow;
+        blockCol = startCol / CellStore.BLOCK_COLS;
+        long positions = (long) (lastBlockRow - firstBlockRow + 1) * (lastBlockCol - blockCol + 1);
+        blockKeys = lastBlockRow >= 0 && lastBlockCol >= 0 && positions > store.getBlockCount()
+                ? store.blockKeysWithin(firstBlockRow, blockCol, lastBlockRow, lastBlockCol)
+                : null;
+        blockIndex = 0;
+        block = null;
+        bits = 0;
+        cell = null;
+    }
+
+    private static Coordinate requireCoordinate(String cell) {
+        Coordinate coordinate = Coordinate.parse(cell);
+        if (coordinate == null) {
+            throw new IllegalArgumentException("Invalid cell coordinate: " + cell);
+        }
+        return coordinate;
     }
 
-    private void findNextNonEmptyCell() {
-        while (hasNext()) {
-            String currentRef = String.valueOf(currentCol) + currentRow;
-            Cell cell = spreadsheet.getCell(currentRef);
-            if (cell != null && cell.getContent() != null) {
-                return;
+    // Moves to the next populated cell, returns false once the range is exhausted
+    public boolean next() {
+        while (true) {
+            while (bits != 0) {
+                int rowInBlock = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                Cell candidate = block.cell(word * CellStore.BLOCK_ROWS + rowInBlock);
+                if (!candidate.isEmpty()) { // Cells kept only for dependency tracking hold no value
+                    cell = candidate;
+                    row = blockFirstRow + rowInBlock;
+                    col = blockFirstCol + word;
+                    return true;
+                }
+            }
+            if (!nextSegment()) {
+                cell = null;
+                return false;
             }
-            moveToNextPosition();
+            bits = block.occupied[word] & rowMask;
         }
     }
 
-    private void moveToNextPosition() {
-        currentRow++;
-        if (currentRow > endRow) {
-            currentRow = startRow;
-            currentCol++;
+    // Moves to the next column segment, the part of one block column inside the range, that holds any cell.
+    // Lets kernels consume a whole segment at once; a cursor is driven either by this or by next(), not both
+    boolean nextSegment() {
+        while (true) {
+            if (block != null && word < lastWord) {
+                word++;
+            } else if (!nextBlock()) {
+                return false;
+            }
+            if ((block.occupied[word] & rowMask) != 0) {
+                return true;
+            }
         }
     }
 
-    @Override
-    public boolean hasNext() {
-        return currentCol <= endCol && 
-               !(currentCol == endCol && currentRow > endRow);
+    CellStore.Block getBlock() {
+        return block;
     }
 
-    @Override
-    public String next() {
-        if (!hasNext()) {
-            throw new NoSuchElementException();
+    // Offset of the current segment's first slot in the block arrays
+    int getSegmentOffset() {
+        return word * CellStore.BLOCK_ROWS;
+    }
+
+    // Bits of the rows of the current segment that lie inside the range
+    long getSegmentMask() {
+        return rowMask;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    public int getCol() {
+        return col;
+    }
+
+    // Numeric value of the current cell, throws like a cell reference would for text and errors
+    public double getValue() {
+        return CellNode.valueOf(spreadsheet, cell);
+    }
+
+    Cell getCell() {
+        return cell;
+    }
+
+    private boolean nextBlock() {
+        block = null;
+        while (block == null) {
+            int currentRow;
+            int currentCol;
+            if (blockKeys != null) {
+                if (blockIndex == blockKeys.length) {
+                    return false;
+                }
+                long key = blockKeys[blockIndex++];
+                currentRow = CellStore.blockRowOf(key);
+                currentCol = CellStore.blockColOf(key);
+            } else {
+                if (blockCol > lastBlockCol || lastBlockRow < 0) {
+                    return false;
+                }
+                currentRow = blockRow;
+                currentCol = blockCol;
+                if (++blockRow > lastBlockRow) {
+                    blockRow = firstBlockRow;
+                    blockCol++;
+                }
+            }
+            block = store.getBlock(currentRow, currentCol);
+            if (block != null) {
+                enterBlock(currentRow, currentCol);
+            }
         }
-        String currentRef = String.valueOf(currentCol) + currentRow;
-        moveToNextPosition();
-        findNextNonEmptyCell();
-        return currentRef;
+        return true;
+    }
+
+    private void enterBlock(int currentRow, int currentCol) {
+        blockFirstRow = currentRow * CellStore.BLOCK_ROWS;
+        blockFirstCol = currentCol * CellStore.BLOCK_COLS;
+        int fromRow = Math.max(startRow, blockFirstRow) - blockFirstRow;
+        int toRow = Math.min(endRow, blockFirstRow + CellStore.BLOCK_ROWS - 1) - blockFirstRow;
+        rowMask = (-1L >>> (Long.SIZE - 1 - toRow + fromRow)) << fromRow;
+        word = Math.max(startCol, blockFirstCol) - blockFirstCol;
+        lastWord = Math.min(endCol, blockFirstCol + CellStore.BLOCK_COLS - 1) - blockFirstCol;
     }
-}
\ No newline at end of file
+}
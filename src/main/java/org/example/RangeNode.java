@@ -0,0 +1,118 @@
+package org.example;
+
+import java.util.List;
+
+// A rectangular range such as A1:B20. Only the two corners are stored; evaluation walks a RangeIterator over
+// the cells actually held by the spreadsheet instead of expanding into one CellNode per position.
+class RangeNode extends FormulaNode {
+    private final Coordinate start; // Corners as written, null for relative ranges
+    private final Coordinate end;
+    private final int startRow, startCol, endRow, endCol; // Offsets from the anchor when relative
+
+    public RangeNode(Coordinate start, Coordinate end) {
+        super(List.of()); // Pass an empty list as children
+        this.start = start;
+        this.end = end;
+        this.startRow = Math.min(start.row(), end.row());
+        this.startCol = Math.min(start.col(), end.col());
+        this.endRow = Math.max(start.row(), end.row());
+        this.endCol = Math.max(start.col(), end.col());
+    }
+
+    public RangeNode(String start, String end) {
+        this(requireCorner(start, end, start), requireCorner(start, end, end));
+    }
+
+    private RangeNode(int firstRow, int firstCol, int lastRow, int lastCol) {
+        super(List.of());
+        this.start = null;
+        this.end = null;
+        this.startRow = Math.min(firstRow, lastRow);
+        this.startCol = Math.min(firstCol, lastCol);
+        this.endRow = Math.max(firstRow, lastRow);
+        this.endCol = Math.max(firstCol, lastCol);
+    }
+
+    // A range whose corners are given as offsets from the anchor cell
+    static RangeNode relative(int firstRowOffset, int firstColOffset, int lastRowOffset, int lastColOffset) {
+        return new RangeNode(firstRowOffset, firstColOffset, lastRowOffset, lastColOffset);
+    }
+
+    private static Coordinate requireCorner(String start, String end, String corner) {
+        Coordinate coordinate = Coordinate.parse(corner);
+        if (coordinate == null) {
+            throw new IllegalArgumentException("Invalid range format: " + start + ":" + end);
+        }
+        return coordinate;
+    }
+
+    public boolean isRelative() {
+        return start == null;
+    }
+
+    // The absolute range this node covers for the given anchor
+    public RangeNode resolve(int anchorRow, int anchorCol) {
+        if (!isRelative()) {
+            return this;
+        }
+        return new RangeNode(new Coordinate(anchorRow + startRow, anchorCol + startCol),
+                new Coordinate(anchorRow + endRow, anchorCol + endCol));
+    }
+
+    @Override
+    public double evaluate(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
+        throw new IllegalArgumentException("Range " + toString(anchorRow, anchorCol) + " can only be used as a function argument");
+    }
+
+    // Cursor over the populated cells this range covers for the given anchor
+    public RangeIterator iterator(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
+        int rowShift = isRelative() ? anchorRow : 0;
+        int colShift = isRelative() ? anchorCol : 0;
+        return new RangeIterator(spreadsheet, startRow + rowShift, startCol + colShift, endRow + rowShift, endCol + colShift);
+    }
+
+    // Points a cursor that is done with its last range at this one instead of creating a cursor
+    RangeIterator iterator(Spreadsheet spreadsheet, int anchorRow, int anchorCol, RangeIterator cursor) {
+        int rowShift = isRelative() ? anchorRow : 0;
+        int colShift = isRelative() ? anchorCol : 0;
+        cursor.reset(spreadsheet, startRow + rowShift, startCol + colShift, endRow + rowShift, endCol + colShift);
+        return cursor;
+    }
+
+    // Running aggregates of the cells this range covers for the given anchor, null if no formula registered it
+    public RangeSummary summary(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
+        int rowShift = isRelative() ? anchorRow : 0;
+        int colShift = isRelative() ? anchorCol : 0;
+        return spreadsheet.getRangeSummary(startRow + rowShift, startCol + colShift, endRow + rowShift, endCol + colShift);
+    }
+
+    // Only meaningful for absolute ranges, relative ones are resolved first
+    public boolean contains(int row, int col) {
+        return row >= startRow && row <= endRow && col >= startCol && col <= endCol;
+    }
+
+    public int getStartRow() {
+        return startRow;
+    }
+
+    public int getStartCol() {
+        return startCol;
+    }
+
+    public int getEndRow() {
+        return endRow;
+    }
+
+    public int getEndCol() {
+        return endCol;
+    }
+
+    @Override
+    public String toString(int anchorRow, int anchorCol) {
+        if (isRelative()) {
+            return new Coordinate(anchorRow + startRow, anchorCol + startCol) + ":"
+                    + new Coordinate(anchorRow + endRow, anchorCol + endCol);
+        }
+        return start + ":" + end;
+    }
+}
@@ -0,0 +1,145 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+// Running aggregates of one range used in formulas, shared by every formula cell that reads it. The first
+// aggregate over the range scans it once; after that each member whose value changes applies its delta,
+// so SUMA and PROMEDIO answer in O(1) and MIN/MAX in O(log n) instead of a pass over the range. The sum
+// uses Kahan compensation so long runs of deltas do not drift. While any member is text, an error or a
+// formula still to be evaluated the summary stands aside and the range is scanned as before.
+final class RangeSummary {
+    private final int startRow, startCol, endRow, endCol;
+    private final List<Cell> listeners = new ArrayList<>();
+
+    private boolean built;
+    private double sum;
+    private double compensation;
+    private int count;
+    private int blocked; // Members that are text, errors or pending formulas
+    private TreeMap<Double, Integer> ordered; // Multiset of member values, kept once MIN or MAX has asked
+
+    RangeSummary(int startRow, int startCol, int endRow, int endCol) {
+        this.startRow = startRow;
+        this.startCol = startCol;
+        this.endRow = endRow;
+        this.endCol = endCol;
+    }
+
+    public boolean contains(int row, int col) {
+        return row >= startRow && row <= endRow && col >= startCol && col <= endCol;
+    }
+
+    void addListener(Cell listener) {
+        listeners.add(listener);
+    }
+
+    // Returns true once no listener is left
+    boolean removeListener(Cell listener) {
+        listeners.remove(listener);
+        return listeners.isEmpty();
+    }
+
+    List<Cell> getListeners() {
+        return listeners;
+    }
+
+    int getStartRow() {
+        return startRow;
+    }
+
+    int getStartCol() {
+        return startCol;
+    }
+
+    int getEndRow() {
+        return endRow;
+    }
+
+    int getEndCol() {
+        return endCol;
+    }
+
+    // Applies the change of one member, called for every value change inside the range
+    synchronized void valueChanged(Cell.ValueState oldState, double oldValue, Cell.ValueState newState, double newValue) {
+        if (built) {
+            include(oldState, oldValue, -1);
+        }
+        if (built) { // Removing the old value may already have given up on the summary
+            include(newState, newValue, 1);
+        }
+    }
+
+    // Folds the whole range into the aggregate, returns false if it has to be scanned instead
+    synchronized boolean foldInto(RangeAggregate aggregate, Spreadsheet spreadsheet) {
+        if (!built) {
+            build(spreadsheet);
+        }
+        if (!built || blocked > 0) {
+            return false;
+        }
+        switch (aggregate.getKind()) {
+            case RangeAggregate.MIN -> {
+                buildOrdered(spreadsheet);
+                aggregate.merge(ordered.isEmpty() ? Double.POSITIVE_INFINITY : ordered.firstKey(), count);
+            }
+            case RangeAggregate.MAX -> {
+                buildOrdered(spreadsheet);
+                aggregate.merge(ordered.isEmpty() ? Double.NEGATIVE_INFINITY : ordered.lastKey(), count);
+            }
+            default -> aggregate.merge(sum, count);
+        }
+        return true;
+    }
+
+    private void build(Spreadsheet spreadsheet) {
+        built = true;
+        sum = 0;
+        compensation = 0;
+        count = 0;
+        blocked = 0;
+        ordered = null;
+        RangeIterator cells = new RangeIterator(spreadsheet, startRow, startCol, endRow, endCol);
+        while (built && cells.next()) {
+            include(cells.getCell().getState(), cells.getCell().getValue(), 1);
+        }
+    }
+
+    private void buildOrdered(Spreadsheet spreadsheet) {
+        if (ordered != null) {
+            return;
+        }
+        ordered = new TreeMap<>();
+        RangeIterator cells = new RangeIterator(spreadsheet, startRow, startCol, endRow, endCol);
+        while (cells.next()) {
+            if (cells.getCell().getState() == Cell.ValueState.NUMBER) {
+                ordered.merge(cells.getCell().getValue(), 1, Integer::sum);
+            }
+        }
+    }
+
+    // Adds (sign 1) or removes (sign -1) the contribution of one member
+    private void include(Cell.ValueState state, double value, int sign) {
+        switch (state) {
+            case EMPTY -> {
+                // Cells kept only for dependency tracking hold no value
+            }
+            case NUMBER -> {
+                if (!Double.isFinite(value)) {
+                    built = false; // Compensation cannot carry infinities, scan until rebuilt
+                    return;
+                }
+                double y = sign * value - compensation;
+                double t = sum + y;
+                compensation = (t - sum) - y;
+                sum = t;
+                count += sign;
+                if (ordered != null) {
+                    ordered.merge(value, sign, (a, b) -> a + b == 0 ? null : a + b);
+                }
+            }
+            default -> blocked += sign;
+        }
+    }
+}
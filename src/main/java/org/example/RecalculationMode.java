@@ -0,0 +1,10 @@
+package org.example;
+
+// When the formulas downstream of an edit are evaluated
+public enum RecalculationMode {
+    // As part of the edit, so every value is current once setCellContent returns
+    EAGER,
+    // The edit only marks them dirty; a dirty formula is evaluated, with the dirty formulas it reads, when
+    // its value is asked for by evaluateCell, displaySpreadsheet or a save
+    LAZY
+}
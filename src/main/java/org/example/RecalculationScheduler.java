@@ -0,0 +1,361 @@
+package org.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RecursiveTask;
+
+// Recalculates the dirty closure of the edited cells in topological order, so every affected
+// formula is evaluated exactly once per edit no matter how many dependency paths lead to it
+class RecalculationScheduler {
+    // Wavefronts smaller than this are evaluated on the calling thread
+    static final int PARALLEL_THRESHOLD = 64;
+
+    private final Spreadsheet spreadsheet;
+
+    public RecalculationScheduler(Spreadsheet spreadsheet) {
+        this.spreadsheet = spreadsheet;
+    }
+
+    // Returns the number of formulas that were recomputed
+    public int recalculate(Cell changed) {
+        return recalculate(List.of(changed));
+    }
+
+    public int recalculate(Collection<Cell> changed) {
+        Map<Cell, Set<Cell>> dirty = collectDirtyClosure(changed);
+        invalidate(dirty.keySet());
+        return evaluateInOrder(dirty);
+    }
+
+    // Lazy recalculation: only marks the formulas of the dirty closure, returns how many were marked
+    public int invalidate(Collection<Cell> changed) {
+        Set<Cell> dirty = collectDirtyClosure(changed).keySet();
+        invalidate(dirty);
+        int marked = 0;
+        for (Cell cell : dirty) {
+            if (cell.getContent() instanceof FormulaContent) {
+                marked++;
+            }
+        }
+        return marked;
+    }
+
+    // Evaluates the requested formulas that are dirty, together with the dirty formulas they read and
+    // nothing else, in the same topological order as a full recalculation. Returns the number evaluated
+    public int evaluatePending(Collection<Cell> requested) {
+        Set<Cell> pending = collectPendingPrecedents(requested);
+        Map<Cell, Set<Cell>> graph = new LinkedHashMap<>();
+        for (Cell cell : pending) {
+            Set<Cell> dependents = new LinkedHashSet<>();
+            for (Cell dependent : spreadsheet.getDependentsOf(cell)) {
+                if (pending.contains(dependent)) {
+                    dependents.add(dependent);
+                }
+            }
+            graph.put(cell, dependents);
+        }
+        return evaluateInOrder(graph);
+    }
+
+    // Drop the cached results of the closure, everything outside it stays valid
+    private void invalidate(Set<Cell> dirty) {
+        spreadsheet.nextRecalculationEpoch();
+        for (Cell cell : dirty) {
+            cell.invalidate(spreadsheet);
+        }
+    }
+
+    // Every edge leaving a cell of the graph must stay inside it
+    private int evaluateInOrder(Map<Cell, Set<Cell>> dirty) {
+        Map<Cell, Integer> pending = countPendingPrecedents(dirty);
+        List<Cell> ready = new ArrayList<>();
+        for (Cell cell : dirty.keySet()) {
+            if (pending.get(cell) == 0) {
+                ready.add(cell);
+            }
+        }
+
+        int recomputed = evaluateWavefronts(ready, dirty, pending);
+        if (pending.isEmpty()) {
+            return recomputed;
+        }
+
+        // Whatever could not be ordered is part of, or fed by, a dependency cycle. Cycle members get the
+        // circular reference error; what they feed is then ordered as usual and reads that error
+        List<Cell> members = findCycleMembers(pending.keySet(), dirty);
+        for (Cell cell : members) {
+            markCircular(cell);
+            pending.remove(cell);
+        }
+        ready = new ArrayList<>();
+        for (Cell cell : members) {
+            for (Cell dependent : dirty.get(cell)) {
+                if (pending.containsKey(dependent) && pending.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        return recomputed + evaluateWavefronts(ready, dirty, pending);
+    }
+
+    // Kahn's algorithm one wavefront at a time: cells of a wavefront only read earlier wavefronts,
+    // so they can be evaluated in any order, or concurrently, with identical results
+    private int evaluateWavefronts(List<Cell> ready, Map<Cell, Set<Cell>> dirty, Map<Cell, Integer> pending) {
+        int recomputed = 0;
+        while (!ready.isEmpty()) {
+            recomputed += evaluateWavefront(ready);
+            List<Cell> next = new ArrayList<>();
+            for (Cell cell : ready) {
+                pending.remove(cell);
+                for (Cell dependent : dirty.get(cell)) {
+                    int remaining = pending.merge(dependent, -1, Integer::sum);
+                    if (remaining == 0) {
+                        next.add(dependent);
+                    }
+                }
+            }
+            ready = next;
+        }
+        return recomputed;
+    }
+
+    // Tarjan's strongly connected components over the cells Kahn's algorithm left, with an explicit stack
+    // of frames instead of recursion. Returns the cells of every component that is a cycle: more than one
+    // cell, or one cell that reads itself. Linear in the cells left and the edges between them
+    private List<Cell> findCycleMembers(Set<Cell> cells, Map<Cell, Set<Cell>> edges) {
+        Map<Cell, Integer> index = new HashMap<>();
+        Map<Cell, Integer> lowLink = new HashMap<>();
+        Deque<Cell> component = new ArrayDeque<>();
+        Set<Cell> onComponent = new HashSet<>();
+        Deque<Cell> frames = new ArrayDeque<>();
+        Deque<Iterator<Cell>> successors = new ArrayDeque<>();
+        List<Cell> members = new ArrayList<>();
+
+        for (Cell root : cells) {
+            if (index.containsKey(root)) {
+                continue;
+            }
+            enter(root, index, lowLink, component, onComponent, frames, successors, edges);
+            while (!frames.isEmpty()) {
+                Cell cell = frames.peek();
+                Iterator<Cell> next = successors.peek();
+                if (next.hasNext()) {
+                    Cell successor = next.next();
+                    if (!cells.contains(successor)) {
+                        continue;
+                    }
+                    if (!index.containsKey(successor)) {
+                        enter(successor, index, lowLink, component, onComponent, frames, successors, edges);
+                    } else if (onComponent.contains(successor)) {
+                        lowLink.put(cell, Math.min(lowLink.get(cell), index.get(successor)));
+                    }
+                    continue;
+                }
+                frames.pop();
+                successors.pop();
+                if (!frames.isEmpty()) {
+                    Cell parent = frames.peek();
+                    lowLink.put(parent, Math.min(lowLink.get(parent), lowLink.get(cell)));
+                }
+                if (lowLink.get(cell).equals(index.get(cell))) {
+                    // The cell is the root of a component, which is everything above it on the stack
+                    boolean cycle = component.peek() != cell || edges.get(cell).contains(cell);
+                    Cell member;
+                    do {
+                        member = component.pop();
+                        onComponent.remove(member);
+                        if (cycle) {
+                            members.add(member);
+                        }
+                    } while (member != cell);
+                }
+            }
+        }
+        return members;
+    }
+
+    private static void enter(Cell cell, Map<Cell, Integer> index, Map<Cell, Integer> lowLink, Deque<Cell> component,
+                              Set<Cell> onComponent, Deque<Cell> frames, Deque<Iterator<Cell>> successors,
+                              Map<Cell, Set<Cell>> edges) {
+        index.put(cell, index.size());
+        lowLink.put(cell, index.get(cell));
+        component.push(cell);
+        onComponent.add(cell);
+        frames.push(cell);
+        successors.push(edges.get(cell).iterator());
+    }
+
+    private void markCircular(Cell cell) {
+        if (cell.getContent() instanceof FormulaContent formulaContent) {
+            spreadsheet.beforeChange(cell);
+            Cell.ValueState oldState = cell.getState();
+            cell.setError(FormulaContent.CIRCULAR_REFERENCE);
+            formulaContent.markValid(spreadsheet.getRecalculationEpoch());
+            spreadsheet.valueChanged(cell, oldState, cell.getValue());
+        }
+    }
+
+    // Breadth-first walk over dependents, each cell is visited once and mapped to its dependents
+    private Map<Cell, Set<Cell>> collectDirtyClosure(Collection<Cell> changed) {
+        Map<Cell, Set<Cell>> dirty = new LinkedHashMap<>();
+        Deque<Cell> queue = new ArrayDeque<>();
+        for (Cell cell : changed) {
+            if (!dirty.containsKey(cell)) {
+                dirty.put(cell, spreadsheet.getDependentsOf(cell));
+                queue.add(cell);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Cell cell = queue.poll();
+            for (Cell dependent : dirty.get(cell)) {
+                if (!dirty.containsKey(dependent)) {
+                    dirty.put(dependent, spreadsheet.getDependentsOf(dependent));
+                    queue.add(dependent);
+                }
+            }
+        }
+        return dirty;
+    }
+
+    // Depth-first walk over precedents, direct ones and the members of ranges, that stops at clean cells.
+    // Edits dirty everything downstream of them, so nothing upstream of a clean cell can be dirty
+    private Set<Cell> collectPendingPrecedents(Collection<Cell> requested) {
+        Set<Cell> pending = new LinkedHashSet<>();
+        Deque<Cell> stack = new ArrayDeque<>();
+        for (Cell cell : requested) {
+            if (isPending(cell) && pending.add(cell)) {
+                stack.push(cell);
+            }
+        }
+        Set<Coordinate> coordinates = new HashSet<>();
+        List<RangeNode> ranges = new ArrayList<>();
+        while (!stack.isEmpty()) {
+            Cell cell = stack.pop();
+            for (Cell precedent : cell.getPrecedents()) {
+                if (isPending(precedent) && pending.add(precedent)) {
+                    stack.push(precedent);
+                }
+            }
+            coordinates.clear();
+            ranges.clear();
+            Spreadsheet.collectDependencies((FormulaContent) cell.getContent(), coordinates, ranges);
+            for (RangeNode range : ranges) {
+                RangeIterator members = range.iterator(spreadsheet, 0, 0);
+                while (members.next()) {
+                    if (isPending(members.getCell()) && pending.add(members.getCell())) {
+                        stack.push(members.getCell());
+                    }
+                }
+            }
+        }
+        return pending;
+    }
+
+    private static boolean isPending(Cell cell) {
+        return cell.getContent() instanceof FormulaContent formulaContent && !formulaContent.isValid();
+    }
+
+    private Map<Cell, Integer> countPendingPrecedents(Map<Cell, Set<Cell>> dirty) {
+        Map<Cell, Integer> pending = new HashMap<>();
+        for (Map.Entry<Cell, Set<Cell>> entry : dirty.entrySet()) {
+            pending.putIfAbsent(entry.getKey(), 0);
+            for (Cell dependent : entry.getValue()) {
+                pending.merge(dependent, 1, Integer::sum);
+            }
+        }
+        return pending;
+    }
+
+    private int evaluateWavefront(List<Cell> wavefront) {
+        int parallelism = spreadsheet.getRecalculationParallelism();
+        if (parallelism > 1 && wavefront.size() >= PARALLEL_THRESHOLD) {
+            return evaluateInParallel(wavefront);
+        }
+        int recomputed = 0;
+        for (Cell cell : wavefront) {
+            if (evaluate(cell)) {
+                recomputed++;
+            }
+        }
+        return recomputed;
+    }
+
+    // Threads evaluating a wavefront would apply their cells' deltas to the shared range summaries in whatever
+    // order they finish, and a floating-point sum depends on that order. The summaries are left alone while
+    // the threads run and brought up to date afterwards in wavefront order, as a sequential pass updates
+    // them, so parallel and sequential recalculation give identical results
+    private int evaluateInParallel(List<Cell> wavefront) {
+        Cell.ValueState[] oldStates = new Cell.ValueState[wavefront.size()];
+        double[] oldValues = new double[wavefront.size()];
+        for (int i = 0; i < wavefront.size(); i++) {
+            oldStates[i] = wavefront.get(i).getState();
+            oldValues[i] = wavefront.get(i).getValue();
+        }
+        spreadsheet.setSummaryUpdatesDeferred(true);
+        try {
+            return spreadsheet.getRecalculationPool().invoke(new EvaluateTask(wavefront, 0, wavefront.size()));
+        } finally {
+            spreadsheet.setSummaryUpdatesDeferred(false);
+            for (int i = 0; i < wavefront.size(); i++) {
+                Cell cell = wavefront.get(i);
+                if (cell.getContent() instanceof FormulaContent) {
+                    spreadsheet.updateRangeSummaries(cell, oldStates[i], oldValues[i]);
+                }
+            }
+        }
+    }
+
+    private boolean evaluate(Cell cell) {
+        if (!(cell.getContent() instanceof FormulaContent)) {
+            return false;
+        }
+        try {
+            cell.evaluate(spreadsheet);
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            // The error is kept in the value slot and shown instead of a number
+        }
+        return true;
+    }
+
+    // Splits a wavefront in halves until the slices are small enough to evaluate directly
+    @SuppressWarnings("serial") // Never serialized, ForkJoinTask is Serializable only by inheritance
+    private class EvaluateTask extends RecursiveTask<Integer> {
+        private final List<Cell> cells;
+        private final int from;
+        private final int to;
+
+        EvaluateTask(List<Cell> cells, int from, int to) {
+            this.cells = cells;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                int recomputed = 0;
+                for (int i = from; i < to; i++) {
+                    if (evaluate(cells.get(i))) {
+                        recomputed++;
+                    }
+                }
+                return recomputed;
+            }
+            int middle = (from + to) >>> 1;
+            EvaluateTask left = new EvaluateTask(cells, from, middle);
+            left.fork();
+            int right = new EvaluateTask(cells, middle, to).compute();
+            return left.join() + right;
+        }
+    }
+}
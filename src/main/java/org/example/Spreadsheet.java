@@ -1,215 +1,460 @@
 package org.example;
 
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 public class Spreadsheet {
-    private final List<List<Cell>> cells;
+    private final CellStore cells;
+    private final RangeIndex rangeIndex;
+    private final FormulaCache formulaCache;
+    private int lastRecalculationCount;
+    private boolean compiledEvaluation;
+    private long recalculationEpoch;
+    private int recalculationParallelism = 1;
+    private ForkJoinPool recalculationPool;
+    private RecalculationMode recalculationMode = RecalculationMode.EAGER;
+    private boolean summaryUpdatesDeferred;
+    // Last snapshot taken, which copies the cells changed since; not kept alive by the sheet, so changes are
+    // only copied while someone holds a snapshot
+    private volatile WeakReference<SpreadsheetSnapshot> latestSnapshot;
+    private SpreadsheetSnapshot.LiveReads liveReads = SpreadsheetSnapshot.LiveReads.DIRECT;
+    private SpreadsheetJournal journal; // Records completed edits when attached
+    // Blocks whose cells changed since the sheet was last saved to or loaded from an indexed workbook file
+    private Path changesTrackedFor;
+    private volatile Set<Long> changedBlocks;
 
     public Spreadsheet() {
-        cells = new ArrayList<>();
+        this(new CellStore());
     }
 
+    Spreadsheet(CellStore cells) {
+        this.cells = cells;
+        rangeIndex = new RangeIndex();
+        formulaCache = new FormulaCache();
+    }
+
+    // Spreadsheet whose blocks of plain numbers are paged out to a memory-mapped file, keeping at most the
+    // given number of blocks of 1024 cells in memory besides those holding text, formulas or referenced cells.
+    // The page file is working storage and is overwritten
+    public static Spreadsheet paged(Path pageFile, int cachedBlocks) throws IOException {
+        return new Spreadsheet(new PagedCellStore(pageFile, cachedBlocks));
+    }
+
+    // Read access: returns the shared empty view for unpopulated coordinates instead of allocating
     public Cell getCell(String coordinate) {
-        int[] indices = parseCoordinate(coordinate);
-        if (indices != null) {
-            ensureCapacity(indices[0], indices[1]);
-            return cells.get(indices[0]).get(indices[1]);
+        Coordinate parsed = Coordinate.parse(coordinate);
+        return parsed == null ? null : getCell(parsed);
+    }
+
+    public Cell getCell(Coordinate coordinate) {
+        return getCell(coordinate.row(), coordinate.col());
+    }
+
+    Cell getCell(int row, int col) {
+        Cell cell = cells.get(row, col);
+        return cell == null ? Cell.EMPTY : cell;
+    }
+
+    // Write access: materialises the cell in the sparse store if needed
+    Cell getOrCreateCell(Coordinate coordinate) {
+        Cell cell = cells.get(coordinate.row(), coordinate.col());
+        if (cell == null) {
+            cell = new Cell(coordinate);
+            cells.put(coordinate.row(), coordinate.col(), cell);
         }
-        return null;
+        return cell;
     }
 
-    public List<List<Cell>> getCells() {
-        return cells;
+    private Cell getOrCreateCell(int row, int col) {
+        Cell cell = cells.get(row, col);
+        return cell != null ? cell : getOrCreateCell(new Coordinate(row, col));
+    }
+
+    public int getRowCount() {
+        return cells.getRowCount();
+    }
+
+    public int getColumnCount() {
+        return cells.getColumnCount();
+    }
+
+    // Number of cells actually held in memory
+    public int getStoredCellCount() {
+        return cells.size();
     }
+
+    // Prints a snapshot, so the table is consistent even if the sheet is edited meanwhile
     public void displaySpreadsheet() {
-        int maxRows = cells.size();
-        int maxCols = getMaxCols();
-
-        System.out.print("   ");
-        for (int col = 0; col < maxCols; col++) {
-            System.out.printf("%-10s", getColumnName(col));
-        }
-        System.out.println();
-
-        for (int row = 0; row < maxRows; row++) {
-            System.out.printf("%-3d", row + 1);
-
-            List<Cell> rowCells = cells.get(row);
-            for (int col = 0; col < maxCols; col++) {
-                if (col < rowCells.size()) {
-                    Cell cell = rowCells.get(col);
-                    String displayValue = getCellDisplayValue(cell);
-                    System.out.printf("%-10s", displayValue);
-                } else {
-                    System.out.printf("%-10s", "");
-                }
-            }
-            System.out.println();
+        if (recalculationMode == RecalculationMode.LAZY) {
+            evaluatePendingFormulas(); // Every cell is shown
         }
+        snapshot().displaySpreadsheet();
     }
 
     public void setCellContent(String coordinate, Content content) {
-        Cell cell = getCell(coordinate);
-        if (cell == null) {
+        Coordinate parsed = Coordinate.parse(coordinate);
+        if (parsed == null) {
         throw new IllegalArgumentException("Invalid cell coordinate.");
         }
+        setCellContent(parsed, content);
+    }
 
-        clearDependencies(cell);
+    public void setCellContent(Coordinate coordinate, Content content) {
+        Cell cell = getOrCreateCell(coordinate);
+        applyContent(cell, content);
 
-        if (content instanceof FormulaContent formulaContent) {
-            List<String> dependencies = extractDependencies(formulaContent);
-            for (String dependentCoordinate : dependencies) {
-                Cell dependentCell = getCell(dependentCoordinate);
-                if (dependentCell != null) {
-                    dependentCell.addDependent(cell);
-                }
+        // Evaluate the formula and everything downstream of it, keeping the formula content on errors
+        lastRecalculationCount = propagate(List.of(cell));
+        if (journal != null) {
+            journal.record(Map.of(coordinate, content));
+        }
+    }
+
+    // Applies every edit first, rewiring the dependencies of each edited cell once, then runs one recalculation
+    // over the union of their dirty closures. If applying or recalculating fails the previous contents are
+    // restored and the exception is rethrown, so the batch takes effect entirely or not at all
+    public void setCellContents(Map<Coordinate, ? extends Content> contents) {
+        for (Map.Entry<Coordinate, ? extends Content> entry : contents.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                throw new IllegalArgumentException("Every edit needs a cell coordinate and a content.");
+            }
+        }
+        Map<Cell, Content> previous = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<Coordinate, ? extends Content> entry : contents.entrySet()) {
+                Cell cell = getOrCreateCell(entry.getKey());
+                previous.put(cell, cell.getContent());
+                applyContent(cell, entry.getValue());
+            }
+            lastRecalculationCount = propagate(previous.keySet());
+        } catch (RuntimeException e) {
+            for (Map.Entry<Cell, Content> entry : previous.entrySet()) {
+                applyContent(entry.getKey(), entry.getValue());
             }
+            lastRecalculationCount = propagate(previous.keySet());
+            throw e;
         }
+        if (journal != null) {
+            journal.record(contents); // A batch that was rolled back is not recorded
+        }
+    }
 
+    // Replaces the content of a cell and rewires its dependencies, without recalculating anything
+    private void applyContent(Cell cell, Content content) {
+        Coordinate coordinate = cell.getCoordinate();
+        beforeChange(cell);
+        clearDependencies(cell);
+        connectDependencies(cell, content);
+        Cell.ValueState oldState = cell.getState();
+        double oldValue = cell.getValue();
         cell.setContent(content);
+        cells.reattach(coordinate.row(), coordinate.col(), cell); // Wiring the dependencies may have paged its block
+        cells.updateNumber(coordinate.row(), coordinate.col(), content);
+        valueChanged(cell, oldState, oldValue);
+    }
+
+    // Bulk loading, first stage: stores the content without wiring dependencies or evaluating anything
+    Cell storeCellContent(int row, int col, Content content) {
+        Cell cell = getOrCreateCell(row, col);
+        beforeChange(cell);
+        Cell.ValueState oldState = cell.getState();
+        double oldValue = cell.getValue();
+        cell.setContent(content);
+        cells.updateNumber(row, col, content);
+        valueChanged(cell, oldState, oldValue);
+        return cell;
+    }
+
+    // Wires one edge of a dependency graph that was stored alongside the cells
+    void addStoredDependency(int row, int col, Cell dependent) {
+        getOrCreateCell(row, col).addDependent(dependent);
+    }
 
-        // Evaluate formula but keep the formula content
+    void addStoredRangeDependency(RangeNode range, Cell dependent) {
+        rangeIndex.add(dependent, range);
+    }
+
+    // Bulk loading, second stage: wires the stored formulas and runs one topological recalculation over them
+    void finishBulkLoad(List<Cell> formulaCells) {
+        for (Cell cell : formulaCells) {
+            connectDependencies(cell, cell.getContent());
+        }
+        recalculate(formulaCells);
+    }
+
+    // Recalculates loaded formulas whose dependencies are already wired
+    void recalculate(List<Cell> formulaCells) {
+        lastRecalculationCount = propagate(formulaCells);
+    }
+
+    // Eager mode recalculates the dirty closure of the changed cells now, lazy mode only marks it
+    private int propagate(Collection<Cell> changed) {
+        RecalculationScheduler scheduler = new RecalculationScheduler(this);
+        if (recalculationMode == RecalculationMode.LAZY) {
+            scheduler.invalidate(changed);
+            return 0;
+        }
+        return scheduler.recalculate(changed);
+    }
+
+    // Evaluates every formula left dirty by lazy recalculation
+    void evaluatePendingFormulas() {
+        List<Cell> formulaCells = new ArrayList<>();
+        cells.forEach((row, col, cell) -> {
+            if (cell.getContent() instanceof FormulaContent) {
+                formulaCells.add(cell);
+            }
+        });
+        new RecalculationScheduler(this).evaluatePending(formulaCells);
+    }
+
+    // Switching back to eager recalculation first brings every dirty formula up to date
+    public void setRecalculationMode(RecalculationMode recalculationMode) {
+        this.recalculationMode = recalculationMode;
+        if (recalculationMode == RecalculationMode.EAGER) {
+            evaluatePendingFormulas();
+        }
+    }
+
+    public RecalculationMode getRecalculationMode() {
+        return recalculationMode;
+    }
+
+    void setJournal(SpreadsheetJournal journal) {
+        this.journal = journal;
+    }
+
+    private void connectDependencies(Cell cell, Content content) {
         if (content instanceof FormulaContent formulaContent) {
-            try {
-                formulaContent.evaluateFormula(this, coordinate);
-            } catch (IllegalArgumentException e) {
-                if (e.getMessage().contains("#ERROR_CIRCULAR_REFERENCE")) {
-                    cell.setContent(new TextContent("#ERROR_CIRCULAR_REFERENCE"));
-                } else {
-                    cell.setContent(new TextContent(e.getMessage()));
-                }
+            Set<Coordinate> dependencies = new LinkedHashSet<>();
+            List<RangeNode> ranges = new ArrayList<>();
+            collectDependencies(formulaContent, dependencies, ranges);
+            for (Coordinate dependency : dependencies) {
+                getOrCreateCell(dependency).addDependent(cell);
+            }
+            // Ranges register once in the range index instead of once per covered cell
+            for (RangeNode range : ranges) {
+                rangeIndex.add(cell, range);
             }
         }
-        
-        cell.updateDependents(this, coordinate);
-    }   
+    }
 
-    private String getCellDisplayValue(Cell cell) {
-        Content content = cell.getContent();
-        if (content instanceof NumericContent) {
-            return cell.getContentString();
-        } else if (content instanceof FormulaContent formulaContent) {
-            return formulaContent.getLastValue(); // Use cached value
-        } else if (content != null) {
-            return content.toString();
+    // Parses a formula for the cell at the coordinate, sharing the tree with formulas of the same relative shape.
+    // Returns null if the formula is invalid
+    FormulaContent parseFormula(String formula, String coordinate) {
+        Coordinate anchor = Coordinate.parse(coordinate);
+        if (anchor == null) {
+            FormulaNode root = FormulaParser.parse(formula);
+            return root == null ? null : new FormulaContent(root);
         }
-        return "";
+        return formulaCache.parse(formula, anchor.row(), anchor.col());
     }
 
-    private void clearDependencies(Cell cell) {
-        for (List<Cell> row : cells) {
-            for (Cell otherCell : row) {
-                otherCell.removeDependent(cell);
-            }
+    FormulaCache getFormulaCache() {
+        return formulaCache;
+    }
+
+    // When enabled, formulas are lowered to CompiledFormula programs on first evaluation
+    public void setCompiledEvaluation(boolean compiledEvaluation) {
+        this.compiledEvaluation = compiledEvaluation;
+    }
+
+    public boolean isCompiledEvaluation() {
+        return compiledEvaluation;
+    }
+
+    // Number of threads used to evaluate independent formulas of a recalculation, 1 keeps it sequential
+    public void setRecalculationParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1.");
+        }
+        if (parallelism != recalculationParallelism && recalculationPool != null) {
+            recalculationPool.shutdown();
+            recalculationPool = null;
+        }
+        recalculationParallelism = parallelism;
+    }
+
+    public int getRecalculationParallelism() {
+        return recalculationParallelism;
+    }
+
+    ForkJoinPool getRecalculationPool() {
+        if (recalculationPool == null) {
+            recalculationPool = new ForkJoinPool(recalculationParallelism);
         }
+        return recalculationPool;
+    }
+
+    // Incremented by the dependency engine for every recalculation pass
+    long getRecalculationEpoch() {
+        return recalculationEpoch;
+    }
+
+    long nextRecalculationEpoch() {
+        return ++recalculationEpoch;
     }
 
-    private List<String> extractDependencies(FormulaContent formulaContent) {
-        List<String> dependencies = new ArrayList<>();
-        collectDependencies(formulaContent.getRoot(), dependencies);
-        return dependencies;
+    // Number of formulas recomputed by the last edit
+    public int getLastRecalculationCount() {
+        return lastRecalculationCount;
     }
 
-    private void collectDependencies(FormulaNode node, List<String> dependencies) {
+    private void clearDependencies(Cell cell) {
+        cell.clearPrecedents();
+        rangeIndex.remove(cell);
+    }
+
+    // Referenced coordinates and ranges of a formula, resolved against its anchor
+    static void collectDependencies(FormulaContent formulaContent, Set<Coordinate> dependencies, List<RangeNode> ranges) {
+        collectDependencies(formulaContent.getRoot(), formulaContent.getAnchorRow(), formulaContent.getAnchorCol(),
+                dependencies, ranges);
+    }
+
+    private static void collectDependencies(FormulaNode node, int anchorRow, int anchorCol,
+                                            Set<Coordinate> dependencies, List<RangeNode> ranges) {
         if (node instanceof CellNode cellNode) {
-            if (!dependencies.contains(cellNode.getCoordinate())) {
-                dependencies.add(cellNode.getCoordinate());
-            }
+            dependencies.add(cellNode.getCoordinate(anchorRow, anchorCol));
+        } else if (node instanceof RangeNode rangeNode) {
+            ranges.add(rangeNode.resolve(anchorRow, anchorCol));
         } else if (node instanceof ValueNode) {
             // No dependencies for value nodes
         } else if (node.getChildren() != null) {
             for (FormulaNode child : node.getChildren()) {
-                collectDependencies(child, dependencies);
+                collectDependencies(child, anchorRow, anchorCol, dependencies, ranges);
             }
         }
     }
 
-    public double evaluateCell(String coordinate) {
-        Cell cell = getCell(coordinate);
-        if (cell == null) {
-            throw new IllegalArgumentException("Cell does not exist: " + coordinate);
+    // Direct dependents plus the formulas whose ranges cover the cell
+    Set<Cell> getDependentsOf(Cell cell) {
+        if (rangeIndex.isEmpty()) {
+            return cell.getDependents();
         }
+        Coordinate coordinate = cell.getCoordinate();
+        Set<Cell> dependents = new LinkedHashSet<>(cell.getDependents());
+        rangeIndex.collectListeners(coordinate.row(), coordinate.col(), dependents);
+        return dependents;
+    }
 
-        Content content = cell.getContent();
-        if (content instanceof NumericContent) {
-            return Double.parseDouble(cell.getContentString());
-        } else if (content instanceof FormulaContent) {
-            try{
-                System.out.println("Evaluating formula at " + coordinate);
-                return ((FormulaContent) content).evaluateFormula(this, coordinate);
-            } catch (IllegalArgumentException e) {
-                System.out.println("Error evaluating formula at " + coordinate + ": " + e.getMessage());
-                cell.setContent(new TextContent(e.getMessage()));
-            }
+    // Called before the content or value of a cell changes. The first change to a cell after a snapshot was
+    // taken copies its old state into the snapshot; with no snapshot outstanding nothing is copied. A parallel
+    // recalculation calls this from several threads, which the snapshot's copies are safe for
+    void beforeChange(Cell cell) {
+        WeakReference<SpreadsheetSnapshot> latest = latestSnapshot;
+        SpreadsheetSnapshot snapshot = latest == null ? null : latest.get();
+        if (snapshot != null) {
+            snapshot.preserve(cell);
         }
+    }
 
-        throw new IllegalArgumentException("Cell does not contain a numeric or formula value: " + coordinate);
+    // Keeps the running aggregates of the ranges containing the cell, and the changed blocks, in step with its value
+    void valueChanged(Cell cell, Cell.ValueState oldState, double oldValue) {
+        Coordinate coordinate = cell.getCoordinate();
+        if (!summaryUpdatesDeferred) {
+            updateRangeSummaries(cell, oldState, oldValue);
+        }
+        Set<Long> changed = changedBlocks;
+        if (changed != null) {
+            changed.add(CellStore.blockKey(coordinate.row(), coordinate.col()));
+        }
     }
 
-    private String getColumnName(int colIndex) {
-        StringBuilder columnName = new StringBuilder();
-        while (colIndex >= 0) {
-            columnName.insert(0, (char) ('A' + (colIndex % 26)));
-            colIndex = (colIndex / 26) - 1;
+    void updateRangeSummaries(Cell cell, Cell.ValueState oldState, double oldValue) {
+        if (!rangeIndex.isEmpty()) {
+            Coordinate coordinate = cell.getCoordinate();
+            rangeIndex.valueChanged(coordinate.row(), coordinate.col(), oldState, oldValue, cell.getState(), cell.getValue());
         }
-        return columnName.toString();
     }
 
-    private int getMaxCols() {
-        int maxCols = 0;
-        for (List<Cell> row : cells) {
-            if (row.size() > maxCols) {
-                maxCols = row.size();
-            }
+    // While set, value changes leave the range summaries alone; a parallel recalculation applies them itself
+    // once its threads are done, in a fixed order
+    void setSummaryUpdatesDeferred(boolean deferred) {
+        summaryUpdatesDeferred = deferred;
+    }
+
+    // Starts tracking the blocks that change from now on for incremental saves to the file, null stops it
+    synchronized void trackChangedBlocks(Path file) {
+        changesTrackedFor = file == null ? null : file.toAbsolutePath().normalize();
+        changedBlocks = file == null ? null : ConcurrentHashMap.newKeySet();
+    }
+
+    // Blocks changed since the last save to the file, tracking starts over; null if they are not tracked for it
+    synchronized Set<Long> takeChangedBlocks(Path file) {
+        if (changedBlocks == null || !changesTrackedFor.equals(file.toAbsolutePath().normalize())) {
+            return null;
         }
-        return maxCols;
+        Set<Long> changed = changedBlocks;
+        changedBlocks = ConcurrentHashMap.newKeySet();
+        return changed;
     }
 
-    private void ensureCapacity(int row, int col) {
-        while (cells.size() <= row) {
-            cells.add(new ArrayList<>());
+    // Contents and results of every cell as of now, unaffected by later edits. O(1): the snapshot reads the
+    // live cells and only the cells changed afterwards are copied, on their first change. Take it between
+    // edits; cells a recalculation has not reached yet show as pending
+    public synchronized SpreadsheetSnapshot snapshot() {
+        SpreadsheetSnapshot latest = latestSnapshot == null ? null : latestSnapshot.get();
+        if (latest != null && latest.isUnchanged() && latest.getRowCount() == cells.getRowCount()
+                && latest.getColumnCount() == cells.getColumnCount()) {
+            return latest;
         }
-        for (int i = 0; i <= row; i++) {
-            List<Cell> rowCells = cells.get(i);
-            while (rowCells.size() <= col) {
-                rowCells.add(new Cell(getCoordinate(i, rowCells.size())));
-            }
+        SpreadsheetSnapshot snapshot = new SpreadsheetSnapshot(cells, liveReads, cells.getRowCount(), cells.getColumnCount());
+        if (latest != null) {
+            latest.setNewer(snapshot);
         }
+        latestSnapshot = new WeakReference<>(snapshot);
+        return snapshot;
     }
 
-    private String getCoordinate(int row, int col) {
-        return getColumnName(col) + Integer.toString(row + 1);
+    // How snapshots read the live cells, for sheets whose cells are read and written from several threads
+    synchronized void setLiveReads(SpreadsheetSnapshot.LiveReads liveReads) {
+        this.liveReads = liveReads;
+        latestSnapshot = null; // Snapshots taken before read without the guard and are not continued
     }
 
-    private int[] parseCoordinate(String coordinate) {
-        if (coordinate == null || coordinate.length() < 2) return null;
+    // Running aggregates of a range read by some formula, null if no formula reads it
+    RangeSummary getRangeSummary(int startRow, int startCol, int endRow, int endCol) {
+        return rangeIndex.isEmpty() ? null : rangeIndex.find(startRow, startCol, endRow, endCol);
+    }
 
-        int i = 0;
-        while (i < coordinate.length() && Character.isLetter(coordinate.charAt(i))) {
-            i++;
-        }
-        String columnPart = coordinate.substring(0, i).toUpperCase();
-        String rowPart = coordinate.substring(i);
+    CellStore getCellStore() {
+        return cells;
+    }
 
-        int rowIndex;
-        try {
-            rowIndex = Integer.parseInt(rowPart) - 1;
-        } catch (NumberFormatException e) {
-            return null;
-        }
-        int colIndex = parseColumnName(columnPart);
-        if (rowIndex >= 0 && colIndex >= 0) {
-            return new int[]{rowIndex, colIndex};
+    public double evaluateCell(String coordinate) {
+        Cell cell = getCell(coordinate);
+        if (cell == null) {
+            throw new IllegalArgumentException("Cell does not exist: " + coordinate);
         }
-        return null;
-    }
 
-    private int parseColumnName(String columnName) {
-        int colIndex = 0;
-        for (int i = 0; i < columnName.length(); i++) {
-            colIndex = colIndex * 26 + (columnName.charAt(i) - 'A' + 1);
+        Content content = cell.getContent();
+        if (content instanceof NumericContent) {
+            return cell.getValue();
+        } else if (content instanceof FormulaContent formulaContent) {
+            if (!formulaContent.isValid()) {
+                System.out.println("Evaluating formula at " + coordinate);
+                // Dirty formulas it reads are evaluated first, in order, instead of recursively
+                new RecalculationScheduler(this).evaluatePending(List.of(cell));
+                if (cell.getState() == Cell.ValueState.ERROR) {
+                    System.out.println("Error evaluating formula at " + coordinate + ": " + cell.getError());
+                }
+            }
+            if (cell.getState() == Cell.ValueState.ERROR) {
+                throw new IllegalArgumentException(cell.getError());
+            }
+            return cell.getValue();
         }
-        return colIndex - 1;
+
+        throw new IllegalArgumentException("Cell does not contain a numeric or formula value: " + coordinate);
     }
 }
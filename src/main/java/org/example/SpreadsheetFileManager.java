@@ -1,24 +1,53 @@
 package org.example;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 
 public class SpreadsheetFileManager {
 
+    // Files ending in this extension are saved in the binary workbook format
+    public static final String BINARY_EXTENSION = ".s2b";
+    // Files ending in this extension are saved in the block-indexed format, which later saves patch in place
+    public static final String INDEXED_EXTENSION = ".s2i";
+
     public static void saveSpreadsheet(Spreadsheet spreadsheet, String filename) throws IOException {
+        if (filename.endsWith(BINARY_EXTENSION) || filename.endsWith(INDEXED_EXTENSION)) {
+            // Results are stored alongside the formulas, the text format only keeps the formulas
+            spreadsheet.evaluatePendingFormulas();
+        }
+        if (filename.endsWith(INDEXED_EXTENSION)) {
+            // Only the blocks changed since the last save to the same file are written
+            IndexedWorkbookFormat.save(spreadsheet, Path.of(filename));
+            return;
+        }
+        saveSnapshot(spreadsheet.snapshot(), filename);
+    }
+
+    // Writes the sheet as it was when the snapshot was taken, edits made meanwhile are not blocked
+    public static void saveSnapshot(SpreadsheetSnapshot snapshot, String filename) throws IOException {
+        if (filename.endsWith(BINARY_EXTENSION)) {
+            BinaryWorkbookFormat.write(snapshot, Path.of(filename));
+            return;
+        } else if (filename.endsWith(INDEXED_EXTENSION)) {
+            IndexedWorkbookFormat.write(snapshot, Path.of(filename));
+            return;
+        }
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-            List<List<Cell>> cells = spreadsheet.getCells();
-            for (List<Cell> row : cells) {
+            int rowCount = snapshot.getRowCount();
+            int columnCount = snapshot.getColumnCount();
+            for (int row = 0; row < rowCount; row++) {
                 StringBuilder line = new StringBuilder();
-                for (int i = 0; i < row.size(); i++) {
-                    Cell cell = row.get(i);
-                    String contentString = cell.getContentString();
-                    if (contentString.startsWith("=")) {
-                        contentString = contentString.replace(";", ",");
+                for (int col = 0; col < columnCount; col++) {
+                    Content content = snapshot.getCell(row, col).content();
+                    String contentString = content.toString();
+                    if (content instanceof FormulaContent formulaContent) {
+                        contentString = formulaContent.toSource().replace(";", ",");
                     }
                     contentString = contentString.replace(";", "\\;");
                     line.append(contentString);
-                    if (i < row.size() - 1) {
+                    if (col < columnCount - 1) {
                         line.append(";"); // Delimit between cells
                     }
                 }
@@ -28,56 +57,71 @@ public class SpreadsheetFileManager {
         }
     }
 
+    // The format is recognised by the magic number at the start of the file, whatever its name
     public static Spreadsheet loadSpreadsheet(String filename) throws IOException {
+        if (BinaryWorkbookFormat.isBinary(Path.of(filename))) {
+            return BinaryWorkbookFormat.read(Path.of(filename));
+        } else if (IndexedWorkbookFormat.isIndexed(Path.of(filename))) {
+            return IndexedWorkbookFormat.read(Path.of(filename));
+        }
+        try (Reader reader = new BufferedReader(new FileReader(filename))) {
+            return readSpreadsheet(reader);
+        }
+    }
+
+    // Streams the cells in, stores them without wiring, then connects and recalculates all formulas once
+    static Spreadsheet readSpreadsheet(Reader reader) throws IOException {
         Spreadsheet spreadsheet = new Spreadsheet();
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            String line;
-            int rowNumber = 0;
-            while ((line = reader.readLine()) != null) {
-                String[] contents = line.split("(?<!\\\\);"); // Split by ; not preceded by \
-                for (int colNumber = 0; colNumber < contents.length; colNumber++) {
-                    String contentString = contents[colNumber].replace("\\;", ";"); // Unescape ;
-                    if (contentString.startsWith("=")) {
-                        contentString = contentString.replace(",", ";");
-                    }
-                    Content content = parseContent(contentString, spreadsheet);
-                    String coordinate = getCoordinate(rowNumber, colNumber);
-                    spreadsheet.setCellContent(coordinate, content);
-                }
-                rowNumber++;
+        List<Cell> formulaCells = new ArrayList<>();
+        CellTextReader cells = new CellTextReader(reader);
+        while (cells.next()) {
+            if (cells.isEmpty()) {
+                continue; // Empty cells are not stored
+            }
+            String contentString = cells.getText();
+            if (contentString.startsWith("=")) {
+                contentString = contentString.replace(",", ";");
+            }
+            Content content = parseContent(contentString, spreadsheet, cells.getRow(), cells.getColumn());
+            Cell cell = spreadsheet.storeCellContent(cells.getRow(), cells.getColumn(), content);
+            if (content instanceof FormulaContent) {
+                formulaCells.add(cell);
             }
         }
+        spreadsheet.finishBulkLoad(formulaCells);
         return spreadsheet;
     }
 
-
-    private static Content parseContent(String contentString, Spreadsheet spreadsheet) {
+    // Formulas go through the spreadsheet's formula cache, so filled-down shapes share one tree
+    static Content parseContent(String contentString, Spreadsheet spreadsheet, int row, int col) {
         if (contentString.startsWith("=")) {
-            // TODO: Parse the formula string into a FormulaNode
-            FormulaNode rootNode = FormulaParser.parse(contentString); 
-            if (rootNode == null){
+            FormulaContent formulaContent = spreadsheet.getFormulaCache().parse(contentString, row, col);
+            if (formulaContent == null){
                 return new TextContent("#ERROR");
             }
             else{
-                return new FormulaContent(rootNode);
+                return formulaContent;
             }
             
-        } else {
+        } else if (mayBeNumber(contentString)) {
             try {
                 return new NumericContent(Double.parseDouble(contentString));
             } catch (NumberFormatException e) {
                 return new TextContent(contentString); 
             }
         }
+        return new TextContent(contentString);
     }
 
-    // Convert row and column indices to a cell coordinate (A1, B2)
-    private static String getCoordinate(int row, int col) {
-        StringBuilder columnName = new StringBuilder();
-        while (col >= 0) {
-            columnName.insert(0, (char) ('A' + (col % 26)));
-            col = (col / 26) - 1;
+    // Cheap pre-check so plain text does not pay for a NumberFormatException
+    private static boolean mayBeNumber(String contentString) {
+        int i = 0;
+        while (i < contentString.length() && contentString.charAt(i) <= ' ') {
+            i++; // Double.parseDouble ignores leading whitespace
         }
-        return columnName.toString() + (row + 1);
-    }
-}
+        if (i == contentString.length()) {
+            return false;
+        }
+        char c = contentString.charAt(i);
+        return (c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.' || c == 'I' || c == 'N';
+    }}
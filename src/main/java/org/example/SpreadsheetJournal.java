@@ -0,0 +1,366 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+// Keeps a spreadsheet durable without rewriting it. Every completed edit of the attached spreadsheet is
+// appended to a journal file as one checksummed record; from time to time the whole sheet is written to a
+// checkpoint file in the binary workbook format and the journal starts over, so it only ever holds the
+// edits made since the last checkpoint. Opening replays that tail on top of the checkpoint.
+//
+// Records are written to the file at once but forced to the disk in groups: a background flusher forces
+// whatever has accumulated every commit interval, and sync() callers that arrive while a force is running
+// wait for the next one instead of each forcing on their own. An interval of 0 forces after every edit.
+//
+// Journal layout: magic, version, then records of
+//   length    payload bytes
+//   checksum  CRC32C of the payload
+//   payload   edit count, then per edit row, column, kind and the number, text or formula tree
+// Formulas are stored as FormulaTrees, not as source text: every literal is kept exactly, so whatever was
+// edited replays, including values such as 1e400 that print as Infinity.
+// A crash can leave a torn record at the end; replay stops at the first record that is incomplete or fails
+// its checksum and the journal is cut there. A crash between writing a checkpoint and emptying the journal
+// replays edits the checkpoint already holds, which is harmless: every record sets contents outright.
+public class SpreadsheetJournal implements Closeable {
+    static final int MAGIC = 0x53324A21; // "S2J!"
+    static final short VERSION = 2; // Version 1 stored formulas as source
+    private static final int HEADER_SIZE = Integer.BYTES + Short.BYTES;
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    // Kind of content of one edit
+    private static final byte NUMBER = 0;
+    private static final byte TEXT = 1;
+    private static final byte FORMULA = 2;
+
+    public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 10;
+    public static final long DEFAULT_CHECKPOINT_THRESHOLD = 64L << 20;
+
+    private final Spreadsheet spreadsheet;
+    private final Path checkpointPath;
+    private final FileChannel channel;
+    private final ScheduledExecutorService flusher;
+    private long checkpointThreshold = DEFAULT_CHECKPOINT_THRESHOLD;
+
+    // Guarded by this: records written to the channel, records forced to the disk and whether a force runs
+    private long size;
+    private long appended;
+    private long durable;
+    private boolean syncing;
+    private IOException failure; // Set when a background force failed, reported by the next edit
+    private boolean closed;
+
+    private SpreadsheetJournal(Spreadsheet spreadsheet, Path checkpointPath, FileChannel channel, long size,
+                               long commitIntervalMillis) {
+        this.spreadsheet = spreadsheet;
+        this.checkpointPath = checkpointPath;
+        this.channel = channel;
+        this.size = size;
+        if (commitIntervalMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "spreadsheet-journal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flush, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    public static SpreadsheetJournal open(Path checkpoint, Path journal) throws IOException {
+        return open(checkpoint, journal, DEFAULT_COMMIT_INTERVAL_MILLIS);
+    }
+
+    // Loads the checkpoint, if there is one, replays the journal onto it and attaches the journal, so from
+    // then on every edit of the returned journal's spreadsheet is recorded
+    public static SpreadsheetJournal open(Path checkpoint, Path journal, long commitIntervalMillis) throws IOException {
+        if (commitIntervalMillis < 0) {
+            throw new IllegalArgumentException("Commit interval cannot be negative.");
+        }
+        Spreadsheet spreadsheet = Files.exists(checkpoint) ? BinaryWorkbookFormat.read(checkpoint) : new Spreadsheet();
+        FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long size = replay(channel, spreadsheet, journal);
+            SpreadsheetJournal opened = new SpreadsheetJournal(spreadsheet, checkpoint, channel, size, commitIntervalMillis);
+            spreadsheet.setJournal(opened);
+            return opened;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Spreadsheet getSpreadsheet() {
+        return spreadsheet;
+    }
+
+    // Journal size above which an edit triggers a checkpoint
+    public void setCheckpointThreshold(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Checkpoint threshold cannot be negative.");
+        }
+        checkpointThreshold = bytes;
+    }
+
+    // Bytes of the journal, header included
+    public synchronized long getSize() {
+        return size;
+    }
+
+    // Appends the edits of one completed setCellContent or setCellContents call
+    void record(Map<Coordinate, ? extends Content> edits) {
+        boolean checkpointDue;
+        try {
+            ByteBuffer record = encode(edits);
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Journal is closed.");
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                writeFully(record, size);
+                size += record.limit();
+                appended++;
+                checkpointDue = size > checkpointThreshold;
+            }
+            if (flusher == null) {
+                sync();
+            }
+            if (checkpointDue) {
+                checkpoint();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Returns once every edit recorded so far is on the disk. Callers that arrive while another caller forces
+    // the journal wait for it and share the next force, so concurrent callers cost one force per group
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            target = appended;
+            while (syncing && durable < target) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the journal to be forced", e);
+                }
+            }
+            if (durable >= target) {
+                return;
+            }
+            syncing = true;
+            target = appended; // Everything written so far is covered by this force
+        }
+        boolean forced = false;
+        try {
+            channel.force(false);
+            forced = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (forced) {
+                    durable = Math.max(durable, target);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    // Writes the whole sheet to the checkpoint file and empties the journal. The checkpoint is written next to
+    // its final name and moved over it, so a crash leaves either the old or the new checkpoint intact. Edits
+    // are recorded under the same lock, so none can land between the snapshot and the truncation and be lost
+    public synchronized void checkpoint() throws IOException {
+        Path temporary = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        BinaryWorkbookFormat.write(spreadsheet.snapshot(), temporary);
+        try (FileChannel written = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            written.force(true);
+        }
+        Files.move(temporary, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.truncate(HEADER_SIZE);
+        channel.force(true);
+        size = HEADER_SIZE;
+        durable = appended;
+    }
+
+    // Forces what is left and detaches the journal; the spreadsheet is no longer recorded
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        spreadsheet.setJournal(null);
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void flush() {
+        try {
+            sync();
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+
+    // Applies every intact record to the spreadsheet, cuts off a torn tail and returns the journal size
+    private static long replay(FileChannel channel, Spreadsheet spreadsheet, Path path) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < HEADER_SIZE) {
+            // New journal, or a crash before its header was complete
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putShort(VERSION).flip();
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+            return HEADER_SIZE;
+        }
+        ByteBuffer header = readAt(channel, 0, HEADER_SIZE);
+        if (header == null || header.getInt() != MAGIC) {
+            throw new IOException("Not a spreadsheet journal: " + path);
+        }
+        short version = header.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported journal version " + version + ": " + path);
+        }
+
+        // Edits are replayed lazily and evaluated once at the end, not once per record
+        RecalculationMode mode = spreadsheet.getRecalculationMode();
+        spreadsheet.setRecalculationMode(RecalculationMode.LAZY);
+        long position = HEADER_SIZE;
+        CRC32C checksum = new CRC32C();
+        while (position + RECORD_HEADER_SIZE <= fileSize) {
+            ByteBuffer recordHeader = readAt(channel, position, RECORD_HEADER_SIZE);
+            int length = recordHeader.getInt();
+            int expected = recordHeader.getInt();
+            if (length < Integer.BYTES || length > fileSize - position - RECORD_HEADER_SIZE) {
+                break;
+            }
+            ByteBuffer payload = readAt(channel, position + RECORD_HEADER_SIZE, length);
+            checksum.reset();
+            checksum.update(payload.duplicate());
+            if ((int) checksum.getValue() != expected) {
+                break;
+            }
+            spreadsheet.setCellContents(decode(payload));
+            position += RECORD_HEADER_SIZE + length;
+        }
+        spreadsheet.setRecalculationMode(mode);
+        if (position < fileSize) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+        return position;
+    }
+
+    // Returns null if the file ends first
+    private static ByteBuffer readAt(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return null;
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static ByteBuffer encode(Map<Coordinate, ? extends Content> edits) {
+        ByteBuffer payload = ByteBuffer.allocate(RECORD_HEADER_SIZE + Integer.BYTES + edits.size() * 32);
+        payload.position(RECORD_HEADER_SIZE);
+        payload.putInt(edits.size());
+        for (Map.Entry<Coordinate, ? extends Content> edit : edits.entrySet()) {
+            payload = ensure(payload, 2 * Integer.BYTES + Byte.BYTES + Double.BYTES);
+            payload.putInt(edit.getKey().row());
+            payload.putInt(edit.getKey().col());
+            if (edit.getValue() instanceof NumericContent numericContent) {
+                payload.put(NUMBER);
+                payload.putDouble(numericContent.getNumber());
+            } else if (edit.getValue() instanceof FormulaContent formulaContent) {
+                FormulaNode root = formulaContent.getRoot();
+                payload.put(FORMULA);
+                payload = ensure(payload, FormulaTrees.size(root));
+                FormulaTrees.write(root, formulaContent.getAnchorRow(), formulaContent.getAnchorCol(), payload);
+            } else {
+                payload.put(TEXT);
+                byte[] bytes = edit.getValue().toString().getBytes(StandardCharsets.UTF_8);
+                payload = ensure(payload, Integer.BYTES + bytes.length);
+                payload.putInt(bytes.length);
+                payload.put(bytes);
+            }
+        }
+        int length = payload.position() - RECORD_HEADER_SIZE;
+        CRC32C checksum = new CRC32C();
+        checksum.update(payload.array(), RECORD_HEADER_SIZE, length);
+        payload.putInt(0, length);
+        payload.putInt(Integer.BYTES, (int) checksum.getValue());
+        return payload.flip();
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        return grown.put(buffer.flip());
+    }
+
+    private static Map<Coordinate, Content> decode(ByteBuffer payload) throws IOException {
+        int count = payload.getInt();
+        Map<Coordinate, Content> edits = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            int row = payload.getInt();
+            int col = payload.getInt();
+            byte kind = payload.get();
+            Content content;
+            if (kind == NUMBER) {
+                content = new NumericContent(payload.getDouble());
+            } else if (kind == FORMULA) {
+                // The record passed its checksum, so a tree that does not decode is not a torn write
+                content = new FormulaContent(FormulaTrees.read(payload));
+            } else if (kind == TEXT) {
+                byte[] bytes = new byte[payload.getInt()];
+                payload.get(bytes);
+                content = new TextContent(new String(bytes, StandardCharsets.UTF_8));
+            } else {
+                throw new IOException("Unknown journal edit kind " + kind);
+            }
+            edits.put(new Coordinate(row, col), content);
+        }
+        return edits;
+    }
+}
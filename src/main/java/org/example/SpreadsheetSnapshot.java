@@ -0,0 +1,169 @@
+package org.example;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// Read-only view of a spreadsheet as it was when the snapshot was taken. Later edits do not show through.
+// Taking one costs O(1) and copies nothing: cells that have not changed since are read from the live sheet,
+// and the first change to a cell after the snapshot was taken copies its old state into the snapshot. A
+// snapshot taken later continues the chain, and an older one looks a cell up in the copies of the newer ones
+// before reading the live sheet, so each change is copied once however many snapshots are outstanding. Once
+// no snapshot is left the sheet copies nothing.
+//
+// Live cells are read through the sheet's LiveReads. A plain Spreadsheet reads them directly, so its
+// snapshots are read on the thread that edits it, between edits; a ConcurrentSpreadsheet guards the reads
+// with its lock, so its snapshots can be read while writers carry on.
+public final class SpreadsheetSnapshot {
+    interface CellVisitor {
+        void visit(int row, int col, CellSnapshot cell);
+    }
+
+    // Runs a read of the live cells, excluding writes for as long as it takes
+    interface LiveReads {
+        LiveReads DIRECT = Supplier::get;
+
+        <T> T read(Supplier<T> reader);
+    }
+
+    private final CellStore cells;
+    private final LiveReads liveReads;
+    private final int rowCount;
+    private final int columnCount;
+    // State as of this snapshot of the cells changed after it was taken and before the next one was
+    private final Map<Long, CellSnapshot> copies = new ConcurrentHashMap<>();
+    private volatile SpreadsheetSnapshot newer;
+
+    SpreadsheetSnapshot(CellStore cells, LiveReads liveReads, int rowCount, int columnCount) {
+        this.cells = cells;
+        this.liveReads = liveReads;
+        this.rowCount = rowCount;
+        this.columnCount = columnCount;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    public String getDisplayValue(Coordinate coordinate) {
+        return getCell(coordinate.row(), coordinate.col()).getDisplayValue();
+    }
+
+    public String getContentString(Coordinate coordinate) {
+        return getCell(coordinate.row(), coordinate.col()).content().toString();
+    }
+
+    // Returns the empty state for unpopulated coordinates. The live cell is read first: a cell that changes
+    // afterwards was copied before it changed, so the copy is found when looked for next
+    CellSnapshot getCell(int row, int col) {
+        CellSnapshot live = liveReads.read(() -> {
+            Cell cell = cells.get(row, col);
+            return cell == null ? CellSnapshot.EMPTY : CellSnapshot.of(cell);
+        });
+        CellSnapshot copy = copied(key(row, col));
+        return copy != null ? copy : live;
+    }
+
+    // Visits every stored cell block by block, in block key order and slot order within a block, reading one
+    // block of the live sheet at a time, so a sheet larger than the heap is streamed rather than copied
+    void forEachCell(CellVisitor visitor) {
+        long[] keys = liveReads.read(cells::blockKeys);
+        Arrays.sort(keys);
+        int[] slots = new int[CellStore.BLOCK_SIZE];
+        CellSnapshot[] states = new CellSnapshot[CellStore.BLOCK_SIZE];
+        for (long blockKey : keys) {
+            int count = liveReads.read(() -> readBlock(blockKey, slots, states));
+            int firstRow = CellStore.blockRowOf(blockKey) * CellStore.BLOCK_ROWS;
+            int firstCol = CellStore.blockColOf(blockKey) * CellStore.BLOCK_COLS;
+            for (int i = 0; i < count; i++) {
+                int row = firstRow + slots[i] % CellStore.BLOCK_ROWS;
+                int col = firstCol + slots[i] / CellStore.BLOCK_ROWS;
+                CellSnapshot copy = copied(key(row, col));
+                visitor.visit(row, col, copy != null ? copy : states[i]);
+            }
+        }
+    }
+
+    // Occupied slots of one live block and the states of their cells, returns how many there are
+    private int readBlock(long blockKey, int[] slots, CellSnapshot[] states) {
+        CellStore.Block block = cells.getBlock(CellStore.blockRowOf(blockKey), CellStore.blockColOf(blockKey));
+        if (block == null) {
+            return 0;
+        }
+        int count = 0;
+        for (int word = 0; word < CellStore.BLOCK_COLS; word++) {
+            for (long bits = block.occupied[word]; bits != 0; bits &= bits - 1) {
+                int index = word * CellStore.BLOCK_ROWS + Long.numberOfTrailingZeros(bits);
+                slots[count] = index;
+                states[count] = CellSnapshot.of(block.cell(index));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Copy-on-write: called before a cell changes, keeps its state as of this snapshot unless already kept
+    void preserve(Cell cell) {
+        Coordinate coordinate = cell.getCoordinate();
+        long key = key(coordinate.row(), coordinate.col());
+        if (!copies.containsKey(key)) {
+            copies.putIfAbsent(key, CellSnapshot.of(cell));
+        }
+    }
+
+    // Nothing has changed since the snapshot was taken
+    boolean isUnchanged() {
+        return copies.isEmpty();
+    }
+
+    // Copies held for this snapshot and the newer ones it reads through
+    int getCopiedCellCount() {
+        int count = 0;
+        for (SpreadsheetSnapshot snapshot = this; snapshot != null; snapshot = snapshot.newer) {
+            count += snapshot.copies.size();
+        }
+        return count;
+    }
+
+    // Changes made from now on are copied into the newer snapshot, which this one reads through
+    void setNewer(SpreadsheetSnapshot newer) {
+        this.newer = newer;
+    }
+
+    private CellSnapshot copied(long key) {
+        for (SpreadsheetSnapshot snapshot = this; snapshot != null; snapshot = snapshot.newer) {
+            CellSnapshot copy = snapshot.copies.get(key);
+            if (copy != null) {
+                return copy;
+            }
+        }
+        return null;
+    }
+
+    private static long key(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    public void displaySpreadsheet() {
+        System.out.print("   ");
+        for (int col = 0; col < columnCount; col++) {
+            System.out.printf("%-10s", Coordinate.columnName(col));
+        }
+        System.out.println();
+
+        for (int row = 0; row < rowCount; row++) {
+            System.out.printf("%-3d", row + 1);
+
+            for (int col = 0; col < columnCount; col++) {
+                String displayValue = getCell(row, col).getDisplayValue();
+                System.out.printf("%-10s", displayValue);
+            }
+            System.out.println();
+        }
+    }
+}
@@ -9,28 +9,28 @@ class SubtractionNode extends FormulaNode {
     }
 
     @Override
-    public double evaluate(Spreadsheet spreadsheet) {
+    public double evaluate(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
         List<FormulaNode> children = getChildren();
         if (children.isEmpty()) {
             throw new IllegalStateException("InversionNode requires at least one operand.");
         }
 
-        double result = children.get(0).evaluate(spreadsheet);
+        double result = children.get(0).evaluate(spreadsheet, anchorRow, anchorCol);
 
         for (int i = 1; i < children.size(); i++) {
-            result -= children.get(i).evaluate(spreadsheet);
+            result -= children.get(i).evaluate(spreadsheet, anchorRow, anchorCol);
         }
 
         return result;
     }
 
     @Override
-    public String toString() {
+    public String toString(int anchorRow, int anchorCol) {
         StringBuilder result = new StringBuilder("(");
         List<FormulaNode> children = getChildren();
 
         for (int i = 0; i < children.size(); i++) {
-            result.append(children.get(i).toString());
+            result.append(children.get(i).toString(anchorRow, anchorCol));
             if (i < children.size() - 1) {
                 result.append(" - ");
             }
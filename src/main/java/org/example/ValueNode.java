@@ -10,13 +10,17 @@ class ValueNode extends FormulaNode {
         this.value = value;
     }
 
+    public double getValue() {
+        return value;
+    }
+
     @Override
-    public double evaluate(Spreadsheet spreadsheet) {
+    public double evaluate(Spreadsheet spreadsheet, int anchorRow, int anchorCol) {
         return value;
     }
 
     @Override
-    public String toString() {
+    public String toString(int anchorRow, int anchorCol) {
         return Double.toString(value); 
     }
 }
@@ -0,0 +1,124 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Read throughput under writes is measured by ConcurrentReadBenchmark in the benchmarks module
+class ConcurrentSpreadsheetTest {
+    private static final int ROWS = 100;
+    private static final int EDITS = 2000;
+    private static final int READERS = 4;
+    private static final Coordinate SUM = Coordinate.parse("B1");
+    private static final Coordinate DOUBLED = Coordinate.parse("C1");
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void testReadersSeeOnlyFullyRecalculatedStates() throws Exception {
+        ConcurrentSpreadsheet spreadsheet = summedColumn();
+
+        // One writer makes a fixed series of edits while the readers check that C1 is always twice B1
+        ExecutorService executor = Executors.newFixedThreadPool(READERS + 1);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicBoolean writing = new AtomicBoolean(true);
+            Future<?> writer = executor.submit(() -> {
+                start.await();
+                try {
+                    for (int i = 0; i < EDITS; i++) {
+                        spreadsheet.setCellContent(new Coordinate(i % ROWS, 0), new NumericContent(i));
+                    }
+                } finally {
+                    writing.set(false);
+                }
+                return null;
+            });
+            List<Future<?>> readers = new ArrayList<>();
+            for (int i = 0; i < READERS; i++) {
+                readers.add(executor.submit(() -> {
+                    start.await();
+                    do {
+                        double[] values = spreadsheet.getValues(SUM, DOUBLED);
+                        assertEquals(values[0] * 2, values[1]);
+                    } while (writing.get());
+                    return null;
+                }));
+            }
+            start.countDown();
+            writer.get();
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Every row was last set by one of the final ROWS edits
+        double expected = (double) (EDITS - ROWS + EDITS - 1) * ROWS / 2;
+        assertEquals(expected, spreadsheet.getValue(SUM));
+        assertEquals(expected * 2, spreadsheet.getValue(DOUBLED));
+    }
+
+    @Test
+    void testSavesWrittenDuringWritesHoldOneConsistentState() throws Exception {
+        ConcurrentSpreadsheet spreadsheet = summedColumn();
+        SpreadsheetSnapshot before = spreadsheet.snapshot();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            Future<?> writer = executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < EDITS; i++) {
+                    spreadsheet.setCellContent(new Coordinate(i % ROWS, 0), new NumericContent(i));
+                }
+                return null;
+            });
+            start.countDown();
+            for (int i = 0; i < 5; i++) {
+                Path file = directory.resolve("save" + i + SpreadsheetFileManager.BINARY_EXTENSION);
+                spreadsheet.save(file.toString());
+                Spreadsheet saved = SpreadsheetFileManager.loadSpreadsheet(file.toString());
+                double sum = 0;
+                for (int row = 0; row < ROWS; row++) {
+                    sum += saved.getCell(new Coordinate(row, 0)).getValue();
+                }
+                // The results were saved with the cells, not recalculated on load
+                assertEquals(sum, saved.getCell(SUM).getValue());
+                assertEquals(sum * 2, saved.getCell(DOUBLED).getValue());
+            }
+            writer.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // A snapshot shows the sheet as it was, whatever was written since
+        assertEquals("4950.0", before.getDisplayValue(SUM));
+        assertEquals("9900.0", before.getDisplayValue(DOUBLED));
+        assertEquals("0.0", before.getDisplayValue(new Coordinate(0, 0)));
+    }
+
+    // Column A holds 0 to 99, B1 sums it and C1 doubles the sum
+    private static ConcurrentSpreadsheet summedColumn() {
+        ConcurrentSpreadsheet spreadsheet = new ConcurrentSpreadsheet();
+        for (int row = 0; row < ROWS; row++) {
+            spreadsheet.setCellContent(new Coordinate(row, 0), new NumericContent(row));
+        }
+        spreadsheet.setCellContent(SUM, new FormulaContent(FormulaParser.parse("=SUMA(A1:A" + ROWS + ")")));
+        spreadsheet.setCellContent(DOUBLED, new FormulaContent(FormulaParser.parse("=B1*2")));
+        assertEquals(9900.0, spreadsheet.getValue(DOUBLED));
+        return spreadsheet;
+    }
+}
@@ -144,4 +144,80 @@ class FormulaParserTest {
             "Should detect self circular reference"
         );
     }
-}
\ No newline at end of file
+
+    @Test
+    void testCompiledFormulaMatchesTree() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A1", new NumericContent(3.0));
+        spreadsheet.setCellContent("A2", new NumericContent(7.5));
+        spreadsheet.setCellContent("A3", new NumericContent(-2.0));
+
+        String[] inputs = {
+            "=(A1+5)*A2-A3/4",
+            "=SUMA(A1:A3)",
+            "=MIN(A1:A3)",
+            "=MAX(A1:A3)",
+            "=PROMEDIO(A1:A3)",
+            "=SUMA(A1:A3;MAX(A1;A2);10)",
+            // Sums that depend on the order of the additions: a range spanning two columns is added one
+            // column at a time onto what came before it, 1 + 1e16 - 1e16 is 0 but 1 + (1e16 - 1e16) is 1
+            "=SUMA(1;B1:C1)",
+            "=PROMEDIO(1;B1:C1;0.1;C1:C5)",
+            "=SUMA(0.3;B1:C5;B1)*MAX(B1:C5;2)"
+        };
+        spreadsheet.setCellContent("B1", new NumericContent(1e16));
+        spreadsheet.setCellContent("C1", new NumericContent(-1e16));
+        for (int row = 2; row <= 5; row++) {
+            spreadsheet.setCellContent("C" + row, new NumericContent(row * 0.1 + 3));
+        }
+        for (String input : inputs) {
+            FormulaNode node = FormulaParser.parse(input);
+            assertNotNull(node, "Parser should return a valid node for " + input);
+            CompiledFormula compiled = CompiledFormula.compile(node, spreadsheet);
+            assertNotNull(compiled, "Compiler should accept " + input);
+            assertEquals(node.evaluate(spreadsheet), compiled.evaluate(spreadsheet), input);
+        }
+    }
+
+    @Test
+    void testCompiledDivisionByZero() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A1", new NumericContent(0.0));
+        CompiledFormula compiled = CompiledFormula.compile(FormulaParser.parse("=5/A1"), spreadsheet);
+        assertThrows(ArithmeticException.class, () -> compiled.evaluate(spreadsheet));
+    }
+
+    @Test
+    void testFunctionInsideExpression() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A1", new NumericContent(2.0));
+        spreadsheet.setCellContent("A2", new NumericContent(4.0));
+        spreadsheet.setCellContent("AB10", new NumericContent(6.0));
+
+        assertEquals(12.0, FormulaParser.parse("=A1*SUMA(A1:A2)").evaluate(spreadsheet));
+        assertEquals(8.0, FormulaParser.parse("=MAX(A1;A2) + PROMEDIO(A1:A2;AB10)").evaluate(spreadsheet));
+        assertEquals(4.0, FormulaParser.parse("=max(A1;min(A2;AB10))").evaluate(spreadsheet));
+        assertEquals("(10.0 - (2.0 * 3.0))", FormulaParser.parse("=10 - 2*3").toString());
+        assertEquals("((10.0 - 2.0) - 3.0)", FormulaParser.parse("=10-2-3").toString());
+    }
+
+    @Test
+    void testNumberLiteralsMatchDoubleParsing() {
+        String[] literals = {"0.1", "0.3", "123.456", "5.", ".25", "1e3", "2.5E-4", "12345678901234567890", "0.000001"};
+        for (String literal : literals) {
+            ValueNode node = (ValueNode) FormulaParser.parse("=" + literal);
+            assertNotNull(node, literal);
+            assertEquals(Double.parseDouble(literal), node.getValue(), literal);
+        }
+    }
+
+    @Test
+    void testMalformedFormulasAreRejected() {
+        String[] inputs = {"=", "=-5", "=A1:A3", "=SUMA()", "=SUMA(A1", "=(1+2", "=1+2)", "=A0", "=a1",
+                "=FOO(A1)", "=1.2.3", "=2E", "=A1 A2", "=SUMA(A1:)"};
+        for (String input : inputs) {
+            assertNull(FormulaParser.parse(input), input);
+        }
+    }
+
+}
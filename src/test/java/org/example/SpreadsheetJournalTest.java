@@ -0,0 +1,154 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SpreadsheetJournalTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void testRecoveryReplaysTheTailSinceTheLastCheckpoint() throws Exception {
+        Path checkpoint = directory.resolve("sheet" + SpreadsheetFileManager.BINARY_EXTENSION);
+        Path journalFile = directory.resolve("sheet.s2j");
+
+        try (SpreadsheetJournal journal = SpreadsheetJournal.open(checkpoint, journalFile)) {
+            Spreadsheet spreadsheet = journal.getSpreadsheet();
+            spreadsheet.setCellContent("A1", new NumericContent(1));
+            spreadsheet.setCellContent("A2", new NumericContent(2));
+            spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=SUMA(A1:A3)")));
+            journal.checkpoint();
+            assertTrue(Files.exists(checkpoint));
+
+            // Only these edits are left in the journal
+            Map<Coordinate, Content> edits = new LinkedHashMap<>();
+            edits.put(Coordinate.parse("A3"), new NumericContent(3));
+            edits.put(Coordinate.parse("C1"), new TextContent("total; so far"));
+            spreadsheet.setCellContents(edits);
+            spreadsheet.setCellContent("A1", new NumericContent(10));
+            journal.sync();
+        }
+
+        // A crash in the middle of an append leaves a torn record behind
+        long intact = Files.size(journalFile);
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(12).putInt(40).putInt(7).putInt(1).flip());
+        }
+
+        try (SpreadsheetJournal journal = SpreadsheetJournal.open(checkpoint, journalFile)) {
+            Spreadsheet recovered = journal.getSpreadsheet();
+            assertEquals(15.0, recovered.evaluateCell("B1"));
+            assertEquals("total; so far", recovered.getCell("C1").getContentString());
+            assertEquals(intact, Files.size(journalFile));
+
+            // The recovered sheet goes on being recorded
+            recovered.setCellContent("A2", new NumericContent(20));
+        }
+        try (SpreadsheetJournal journal = SpreadsheetJournal.open(checkpoint, journalFile, 0)) {
+            assertEquals(33.0, journal.getSpreadsheet().evaluateCell("B1"));
+        }
+    }
+
+    @Test
+    void testFormulasWithSeveralArgumentsAreReplayed() throws Exception {
+        Path checkpoint = directory.resolve("functions" + SpreadsheetFileManager.BINARY_EXTENSION);
+        Path journalFile = directory.resolve("functions.s2j");
+
+        try (SpreadsheetJournal journal = SpreadsheetJournal.open(checkpoint, journalFile, 0)) {
+            Spreadsheet spreadsheet = journal.getSpreadsheet();
+            spreadsheet.setCellContent("A1", new NumericContent(4));
+            spreadsheet.setCellContent("B1", new NumericContent(6));
+            spreadsheet.setCellContent("C1", spreadsheet.parseFormula("=SUMA(A1;B1;A1:B1)", "C1"));
+            spreadsheet.setCellContent("C2", spreadsheet.parseFormula("=MAX(A1;B1;7)", "C2"));
+            spreadsheet.setCellContent("C3", spreadsheet.parseFormula("=PROMEDIO(A1;B1)*MIN(A1;B1)", "C3"));
+        }
+
+        try (SpreadsheetJournal journal = SpreadsheetJournal.open(checkpoint, journalFile, 0)) {
+            Spreadsheet recovered = journal.getSpreadsheet();
+            assertEquals(20.0, recovered.evaluateCell("C1"));
+            assertEquals(7.0, recovered.evaluateCell("C2"));
+            assertEquals(20.0, recovered.evaluateCell("C3"));
+            assertEquals("=SUMA(A1, B1, A1:B1)", recovered.getCell("C1").getContentString());
+        }
+    }
+
+    @Test
+    void testExtremeLiteralsAreReplayedExactly() throws Exception {
+        Path checkpoint = directory.resolve("literals" + SpreadsheetFileManager.BINARY_EXTENSION);
+        Path journalFile = directory.resolve("literals.s2j");
+
+        try (SpreadsheetJournal journal = SpreadsheetJournal.open(checkpoint, journalFile, 0)) {
+            Spreadsheet spreadsheet = journal.getSpreadsheet();
+            spreadsheet.setCellContent("A1", spreadsheet.parseFormula("=1e400", "A1"));
+            spreadsheet.setCellContent("A2", spreadsheet.parseFormula("=1e10", "A2"));
+            spreadsheet.setCellContent("A3", spreadsheet.parseFormula("=0.1*3", "A3"));
+            spreadsheet.setCellContent("A4", spreadsheet.parseFormula("=SUMA(A2;1e-320)", "A4"));
+            journal.sync();
+        }
+
+        try (SpreadsheetJournal journal = SpreadsheetJournal.open(checkpoint, journalFile, 0)) {
+            Spreadsheet recovered = journal.getSpreadsheet();
+            assertEquals(Double.POSITIVE_INFINITY, recovered.evaluateCell("A1"));
+            assertEquals(1e10, recovered.evaluateCell("A2"));
+            assertEquals(0.1 * 3, recovered.evaluateCell("A3"));
+            assertEquals(1e10 + 1e-320, recovered.evaluateCell("A4"));
+            FormulaContent literal = (FormulaContent) recovered.getCell("A4").getContent();
+            assertEquals(1e-320, ((ValueNode) literal.getRoot().getChildren().get(1)).getValue());
+        }
+    }
+
+    @Test
+    void testRecordWithAFormulaThatDoesNotDecodeFailsTheReplay() throws Exception {
+        Path checkpoint = directory.resolve("invalid" + SpreadsheetFileManager.BINARY_EXTENSION);
+        Path journalFile = directory.resolve("invalid.s2j");
+        try (SpreadsheetJournal journal = SpreadsheetJournal.open(checkpoint, journalFile, 0)) {
+            journal.getSpreadsheet().setCellContent("A1", new NumericContent(1));
+        }
+
+        // An intact record whose formula tree has an unknown node tag
+        ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES * 4 + 2);
+        payload.putInt(1).putInt(0).putInt(1).put((byte) 2).put((byte) 99).putInt(0).flip();
+        CRC32C checksum = new CRC32C();
+        checksum.update(payload.duplicate());
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(8).putInt(payload.limit()).putInt((int) checksum.getValue()).flip());
+            channel.write(payload);
+        }
+
+        assertThrows(IOException.class, () -> SpreadsheetJournal.open(checkpoint, journalFile, 0));
+    }
+
+    @Test
+    void testJournalIsCheckpointedOnceItGrowsPastTheThreshold() throws Exception {
+        Path checkpoint = directory.resolve("large" + SpreadsheetFileManager.BINARY_EXTENSION);
+        Path journalFile = directory.resolve("large.s2j");
+
+        try (SpreadsheetJournal journal = SpreadsheetJournal.open(checkpoint, journalFile)) {
+            journal.setCheckpointThreshold(64 << 10);
+            Spreadsheet spreadsheet = journal.getSpreadsheet();
+            spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=SUMA(A1:A10000)")));
+            for (int row = 0; row < 10000; row++) {
+                spreadsheet.setCellContent(new Coordinate(row, 0), new NumericContent(1));
+            }
+            // Each edit costs one small record, the sheet itself is written only at checkpoints
+            assertTrue(Files.exists(checkpoint));
+            assertTrue(journal.getSize() <= 64 << 10);
+        }
+
+        try (SpreadsheetJournal journal = SpreadsheetJournal.open(checkpoint, journalFile)) {
+            assertEquals(10000.0, journal.getSpreadsheet().evaluateCell("B1"));
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package org.example;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class SpreadsheetTest {
@@ -24,4 +27,777 @@ class SpreadsheetTest {
         file.delete();
     }
 
-}
\ No newline at end of file
+    @org.junit.jupiter.api.Test
+    void testSparseStorageOnlyHoldsPopulatedCells() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("Z100000", new NumericContent(1.0));
+
+        assertEquals(1, spreadsheet.getStoredCellCount());
+        assertEquals(100000, spreadsheet.getRowCount());
+        assertEquals(26, spreadsheet.getColumnCount());
+
+        // Reading empty coordinates returns the shared empty view without storing anything
+        assertSame(spreadsheet.getCell("A1"), spreadsheet.getCell("B2"));
+        assertEquals("", spreadsheet.getCell("A1").getContentString());
+        assertEquals(1, spreadsheet.getStoredCellCount());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testDiamondRecalculatesEachFormulaOnce() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A1", new NumericContent(1.0));
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=A1+1")));
+        spreadsheet.setCellContent("C1", new FormulaContent(FormulaParser.parse("=A1*2")));
+        spreadsheet.setCellContent("D1", new FormulaContent(FormulaParser.parse("=B1+C1")));
+
+        spreadsheet.setCellContent("A1", new NumericContent(5.0));
+
+        assertEquals(3, spreadsheet.getLastRecalculationCount());
+        assertEquals(16.0, spreadsheet.evaluateCell("D1"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testStackedDiamondsRecalculateLinearly() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A1", new NumericContent(1.0));
+        // Each row fans out into two formulas that join again, doubling the paths per level
+        for (int row = 2; row <= 21; row++) {
+            int previous = row - 1;
+            spreadsheet.setCellContent("B" + row, new FormulaContent(FormulaParser.parse("=A" + previous + "+1")));
+            spreadsheet.setCellContent("C" + row, new FormulaContent(FormulaParser.parse("=A" + previous + "-1")));
+            spreadsheet.setCellContent("A" + row, new FormulaContent(FormulaParser.parse("=B" + row + "+C" + row)));
+        }
+
+        spreadsheet.setCellContent("A1", new NumericContent(2.0));
+
+        assertEquals(60, spreadsheet.getLastRecalculationCount());
+        assertEquals(Math.pow(2, 21), spreadsheet.evaluateCell("A21"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testFormulaRecoversWhenPrecedentChanges() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A1", new NumericContent(0.0));
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=10/A1")));
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.evaluateCell("B1"));
+
+        spreadsheet.setCellContent("A1", new NumericContent(4.0));
+        assertEquals(2.5, spreadsheet.evaluateCell("B1"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testRepointingFormulaMovesDependencyEdges() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A1", new NumericContent(1.0));
+        spreadsheet.setCellContent("C1", new NumericContent(3.0));
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=A1*2")));
+        assertTrue(spreadsheet.getCell("A1").getDependents().contains(spreadsheet.getCell("B1")));
+
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=C1*2")));
+        assertTrue(spreadsheet.getCell("A1").getDependents().isEmpty());
+        assertEquals(1, spreadsheet.getCell("B1").getPrecedents().size());
+        assertTrue(spreadsheet.getCell("B1").getPrecedents().contains(spreadsheet.getCell("C1")));
+
+        spreadsheet.setCellContent("A1", new NumericContent(10.0));
+        assertEquals(0, spreadsheet.getLastRecalculationCount());
+        assertEquals(6.0, spreadsheet.evaluateCell("B1"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testLargeRangeIsNotExpanded() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A1", new NumericContent(1.0));
+        spreadsheet.setCellContent("A50000", new NumericContent(2.0));
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=SUMA(A1:A50000)")));
+        assertEquals(3.0, spreadsheet.evaluateCell("B1"));
+        assertEquals(3, spreadsheet.getStoredCellCount());
+
+        // Writing inside the range reaches the formula through the range index
+        spreadsheet.setCellContent("A25000", new NumericContent(4.0));
+        assertEquals(1, spreadsheet.getLastRecalculationCount());
+        assertEquals(7.0, spreadsheet.evaluateCell("B1"));
+
+        // Re-pointing the formula unregisters its range
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=MAX(A1:A2)")));
+        spreadsheet.setCellContent("A30000", new NumericContent(5.0));
+        assertEquals(0, spreadsheet.getLastRecalculationCount());
+        assertEquals(1.0, spreadsheet.evaluateCell("B1"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testCompiledEvaluationFollowsEdits() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCompiledEvaluation(true);
+        spreadsheet.setCellContent("A1", new NumericContent(2.0));
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=SUMA(C1:C3)*A1")));
+        spreadsheet.setCellContent("C2", new NumericContent(4.0));
+        assertEquals(8.0, spreadsheet.evaluateCell("B1"));
+
+        spreadsheet.setCellContent("A1", new NumericContent(3.0));
+        assertEquals(12.0, spreadsheet.evaluateCell("B1"));
+
+        // Programs evaluated within one another each keep their own working slots
+        spreadsheet.setRecalculationMode(RecalculationMode.LAZY);
+        for (int row = 2; row <= 100; row++) {
+            spreadsheet.setCellContent("D" + row, new FormulaContent(FormulaParser.parse("=PROMEDIO(D" + (row - 1) + ";SUMA(A1;2))*2-5")));
+        }
+        spreadsheet.setCellContent("D1", new NumericContent(7.0));
+        // Evaluated directly, the stale cells below are evaluated from inside the programs that read them
+        CompiledFormula compiled = CompiledFormula.compile(FormulaParser.parse("=PROMEDIO(D100;SUMA(D100;1))"), spreadsheet);
+        assertEquals(7.5, compiled.evaluate(spreadsheet));
+        assertEquals(7.0, spreadsheet.evaluateCell("D100"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testCellsHoldTypedValues() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A1", new NumericContent(2.5));
+        spreadsheet.setCellContent("A2", new TextContent("label"));
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=A1*4")));
+        spreadsheet.setCellContent("B2", new FormulaContent(FormulaParser.parse("=A1/0")));
+
+        Cell number = spreadsheet.getCell("A1");
+        assertEquals(Cell.ValueState.NUMBER, number.getState());
+        assertEquals(2.5, number.getValue());
+
+        Cell formula = spreadsheet.getCell("B1");
+        assertEquals(Cell.ValueState.NUMBER, formula.getState());
+        assertEquals(10.0, formula.getValue());
+        assertEquals("10.0", formula.getDisplayValue());
+        assertEquals("=(A1 * 4.0)", formula.getContentString());
+
+        Cell failing = spreadsheet.getCell("B2");
+        assertEquals(Cell.ValueState.ERROR, failing.getState());
+        assertEquals("Division by zero.", failing.getDisplayValue());
+
+        assertEquals(Cell.ValueState.TEXT, spreadsheet.getCell("A2").getState());
+        assertEquals(Cell.ValueState.EMPTY, spreadsheet.getCell("C9").getState());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testLongChainReadsCachedPrecedents() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A1", new NumericContent(0.0));
+        for (int row = 2; row <= 5000; row++) {
+            spreadsheet.setCellContent("A" + row, new FormulaContent(FormulaParser.parse("=A" + (row - 1) + "+1")));
+        }
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=A5000+A5000")));
+
+        spreadsheet.setCellContent("A1", new NumericContent(1.0));
+        assertEquals(5000, spreadsheet.getLastRecalculationCount());
+        assertEquals(10000.0, spreadsheet.evaluateCell("B1"));
+
+        // Every formula in the chain was computed in the same recalculation pass
+        FormulaContent last = (FormulaContent) spreadsheet.getCell("A5000").getContent();
+        assertTrue(last.isValid());
+        assertEquals(last.getValidEpoch(), ((FormulaContent) spreadsheet.getCell("A2").getContent()).getValidEpoch());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testParallelRecalculationMatchesSequential() {
+        Spreadsheet sequential = new Spreadsheet();
+        Spreadsheet parallel = new Spreadsheet();
+        parallel.setRecalculationParallelism(4);
+
+        for (Spreadsheet spreadsheet : new Spreadsheet[]{sequential, parallel}) {
+            spreadsheet.setCellContent("A1", new NumericContent(1.0));
+            for (int row = 1; row <= 300; row++) {
+                spreadsheet.setCellContent("B" + row, new FormulaContent(FormulaParser.parse("=A1*" + row)));
+                spreadsheet.setCellContent("C" + row, new FormulaContent(FormulaParser.parse("=B" + row + "+" + row)));
+                spreadsheet.setCellContent("D" + row, new FormulaContent(FormulaParser.parse("=C" + row + "/3")));
+            }
+            spreadsheet.setCellContent("E1", new FormulaContent(FormulaParser.parse("=SUMA(D1:D300)")));
+            spreadsheet.setCellContent("E2", new FormulaContent(FormulaParser.parse("=PROMEDIO(B1:B300)")));
+            spreadsheet.setCellContent("E3", new FormulaContent(FormulaParser.parse("=SUMA(C1:D300)")));
+            spreadsheet.setCellContent("A1", new NumericContent(0.7));
+        }
+
+        assertEquals(903, parallel.getLastRecalculationCount());
+        assertEquals(sequential.getLastRecalculationCount(), parallel.getLastRecalculationCount());
+        for (int row = 1; row <= 300; row++) {
+            assertEquals(sequential.evaluateCell("D" + row), parallel.evaluateCell("D" + row));
+        }
+
+        // The running sums of the ranges take the deltas of members evaluated in parallel, in the same order
+        for (double value : new double[]{0.7, 1e-9, 123456.789, 0.1, -3.3}) {
+            sequential.setCellContent("A1", new NumericContent(value));
+            parallel.setCellContent("A1", new NumericContent(value));
+            for (String total : new String[]{"E1", "E2", "E3"}) {
+                assertEquals(sequential.evaluateCell(total), parallel.evaluateCell(total), total + " after A1=" + value);
+            }
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void testStreamingLoadWiresFormulasOnce() throws Exception {
+        String text = "=B3+C3;2\\;3 apples\r\n"
+                + "\n"
+                + "1;=SUMA(A3,B4:B5);5\n"
+                + "=A3*2;7;;=A1\n";
+        Spreadsheet loaded = SpreadsheetFileManager.readSpreadsheet(new java.io.StringReader(text));
+
+        assertEquals("2;3 apples", loaded.getCell("B1").getContentString());
+        assertEquals(Cell.ValueState.EMPTY, loaded.getCell("C4").getState());
+        assertEquals(8.0, loaded.evaluateCell("B3"));
+        assertEquals(13.0, loaded.evaluateCell("A1"));
+        assertEquals(13.0, loaded.evaluateCell("D4"));
+        assertEquals(2.0, loaded.evaluateCell("A4"));
+        assertEquals(4, loaded.getLastRecalculationCount());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testBinaryWorkbookRoundTrip() throws Exception {
+        Spreadsheet original = new Spreadsheet();
+        original.setCellContent("A1", new NumericContent(1.0));
+        original.setCellContent("A2", new NumericContent(3.0));
+        original.setCellContent("B1", new TextContent("Hello; world"));
+        original.setCellContent("C1", new FormulaContent(FormulaParser.parse("=SUMA(A1:A3)*2")));
+        original.setCellContent("C2", new FormulaContent(FormulaParser.parse("=A1/0")));
+        original.setCellContent("AB500", new FormulaContent(FormulaParser.parse("=PROMEDIO(A1;A2;C1)")));
+
+        original.setCellContent("C3", new FormulaContent(FormulaParser.parse("=A1*2")));
+        original.getCell("C3").setError(null); // An error that came without a message
+
+        String tempFile = "test_spreadsheet" + SpreadsheetFileManager.BINARY_EXTENSION;
+        SpreadsheetFileManager.saveSpreadsheet(original, tempFile);
+        Spreadsheet loaded = SpreadsheetFileManager.loadSpreadsheet(tempFile);
+        new java.io.File(tempFile).delete();
+
+        // Cached results are restored, nothing is recalculated on load
+        assertEquals(0, loaded.getLastRecalculationCount());
+        assertEquals("Hello; world", loaded.getCell("B1").getContentString());
+        assertEquals(8.0, loaded.evaluateCell("C1"));
+        assertEquals(4.0, loaded.evaluateCell("AB500"));
+        assertEquals(Cell.ValueState.ERROR, loaded.getCell("C2").getState());
+        assertEquals(original.getCell("C2").getDisplayValue(), loaded.getCell("C2").getDisplayValue());
+        assertEquals(Cell.ValueState.ERROR, loaded.getCell("C3").getState());
+        assertNull(loaded.getCell("C3").getError());
+        assertEquals("=(SUMA(A1:A3) * 2.0)", loaded.getCell("C1").getContentString());
+
+        // The stored dependency graph, ranges included, drives recalculation after the load
+        loaded.setCellContent("A3", new NumericContent(4.0));
+        assertEquals(16.0, loaded.evaluateCell("C1"));
+        assertEquals(20.0 / 3, loaded.evaluateCell("AB500"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testTruncatedOrCorruptBinaryWorkbookFailsToLoad() throws Exception {
+        Spreadsheet original = new Spreadsheet();
+        original.setCellContent("A1", new NumericContent(1.0));
+        original.setCellContent("B1", new TextContent("label"));
+        original.setCellContent("C1", new FormulaContent(FormulaParser.parse("=SUMA(A1:A3)*2")));
+        original.setCellContent("C2", new FormulaContent(FormulaParser.parse("=A1/0")));
+
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("corrupt", SpreadsheetFileManager.BINARY_EXTENSION);
+        try {
+            SpreadsheetFileManager.saveSpreadsheet(original, file.toString());
+            byte[] full = java.nio.file.Files.readAllBytes(file);
+
+            // Cut anywhere after the magic number, the file is still recognised and fails with an IOException
+            for (int length = Integer.BYTES; length < full.length; length++) {
+                java.nio.file.Files.write(file, java.util.Arrays.copyOf(full, length));
+                assertThrows(java.io.IOException.class, () -> SpreadsheetFileManager.loadSpreadsheet(file.toString()), "Length " + length);
+            }
+
+            // A string count far beyond the size of the file is rejected before anything is allocated for it
+            byte[] corrupt = full.clone();
+            java.nio.ByteBuffer.wrap(corrupt).putInt(Integer.BYTES + Short.BYTES, Integer.MAX_VALUE);
+            java.nio.file.Files.write(file, corrupt);
+            java.io.IOException e = assertThrows(java.io.IOException.class, () -> SpreadsheetFileManager.loadSpreadsheet(file.toString()));
+            assertTrue(e.getMessage().contains(file.toString()), e.getMessage());
+
+            java.nio.file.Files.write(file, full);
+            assertEquals(2.0, SpreadsheetFileManager.loadSpreadsheet(file.toString()).evaluateCell("C1"));
+        } finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void testFilledDownFormulasShareOneTree() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        for (int row = 1; row <= 100; row++) {
+            spreadsheet.setCellContent("A" + row, new NumericContent(row));
+            spreadsheet.setCellContent("B" + row, spreadsheet.parseFormula("=A" + row + "*2+MAX(A" + row + ":A" + (row + 1) + ")", "B" + row));
+        }
+
+        FormulaCache cache = spreadsheet.getFormulaCache();
+        assertEquals(1, cache.getMisses());
+        assertEquals(99, cache.getHits());
+        FormulaContent first = (FormulaContent) spreadsheet.getCell("B1").getContent();
+        FormulaContent last = (FormulaContent) spreadsheet.getCell("B100").getContent();
+        assertSame(first.getRoot(), last.getRoot());
+
+        // Each cell resolves the shared tree against its own position
+        assertEquals("=((A100 * 2.0) + MAX(A100:A101))", spreadsheet.getCell("B100").getContentString());
+        assertEquals(4.0, spreadsheet.evaluateCell("B1"));
+        assertEquals(300.0, spreadsheet.evaluateCell("B100"));
+
+        // Dependencies are wired per cell, so edits reach exactly the cells whose resolved references cover them
+        spreadsheet.setCellContent("A101", new NumericContent(1000.0));
+        assertEquals(1, spreadsheet.getLastRecalculationCount());
+        assertEquals(1200.0, spreadsheet.evaluateCell("B100"));
+        spreadsheet.setCellContent("A1", new NumericContent(11.0));
+        assertEquals(33.0, spreadsheet.evaluateCell("B1"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testFormulaCacheEvictsLeastRecentlyUsedShape() {
+        FormulaCache cache = new FormulaCache(2);
+        cache.parse("=A1+1", 0, 1);
+        cache.parse("=A1+2", 0, 1);
+        cache.parse("=A2+1", 1, 1); // Same shape as the first formula
+        cache.parse("=A1+3", 0, 1); // Evicts "+2", the least recently used shape
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.size());
+
+        cache.parse("=A5+2", 4, 1);
+        assertEquals(1, cache.getHits());
+        assertNull(cache.parse("=A1++1", 0, 1));
+        assertNotEquals(FormulaCache.relativeShape("=A1", 0, 0), FormulaCache.relativeShape("=A1", 1, 0));
+        assertEquals(FormulaCache.relativeShape("=1.E5+A1", 0, 0), FormulaCache.relativeShape("=1.E5+A2", 1, 0));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testCoordinatesAreParsedOnlyAtTheBoundary() {
+        assertEquals(new Coordinate(11, 27), Coordinate.parse("AB12"));
+        assertEquals(new Coordinate(0, 0), Coordinate.parse("a1"));
+        assertEquals("ZZ100", Coordinate.parse("ZZ100").toString());
+        assertNull(Coordinate.parse("A0"));
+        assertNull(Coordinate.parse("12"));
+        assertNull(Coordinate.parse("A1B"));
+        assertNull(Coordinate.parse("A99999999999"));
+
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent(new Coordinate(1, 26), new NumericContent(3.0));
+        spreadsheet.setCellContent("AA5", new NumericContent(4.0));
+        spreadsheet.setCellContent("B2", new FormulaContent(FormulaParser.parse("=AA2*AA5")));
+        assertEquals(new Coordinate(1, 1), spreadsheet.getCell("B2").getCoordinate());
+        assertEquals(12.0, spreadsheet.evaluateCell("B2"));
+
+        RangeIterator iterator = new RangeIterator("Z1", "AA9", spreadsheet);
+        assertTrue(iterator.next());
+        assertEquals(Coordinate.parse("AA2"), new Coordinate(iterator.getRow(), iterator.getCol()));
+        assertTrue(iterator.next());
+        assertEquals(Coordinate.parse("AA5"), new Coordinate(iterator.getRow(), iterator.getCol()));
+        assertFalse(iterator.next());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testRangeIteratorVisitsOnlyStoredCells() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent(new Coordinate(0, 0), new NumericContent(1.0));
+        spreadsheet.setCellContent(new Coordinate(5, 3), new NumericContent(5.0));
+        spreadsheet.setCellContent(new Coordinate(63, 15), new NumericContent(2.0));
+        spreadsheet.setCellContent(new Coordinate(64, 16), new NumericContent(3.0));
+        spreadsheet.setCellContent(new Coordinate(1000, 40), new NumericContent(4.0));
+
+        // Far more block positions than allocated blocks, so only the allocated ones are visited
+        RangeIterator iterator = new RangeIterator("A1", "ZZ100000", spreadsheet);
+        StringBuilder visited = new StringBuilder();
+        double sum = 0;
+        while (iterator.next()) {
+            visited.append(new Coordinate(iterator.getRow(), iterator.getCol())).append(' ');
+            sum += iterator.getValue();
+        }
+        assertEquals("A1 D6 P64 Q65 AO1001 ", visited.toString());
+        assertEquals(15.0, sum);
+
+        iterator = new RangeIterator("D6", "B2", spreadsheet);
+        assertTrue(iterator.next());
+        assertEquals(5.0, iterator.getValue());
+        assertFalse(iterator.next());
+        assertFalse(new RangeIterator("A3000", "B4000", spreadsheet).next());
+
+        spreadsheet.setCellContent("AZ1", new FormulaContent(FormulaParser.parse("=SUMA(A1:AP2000)+MAX(P1:Q100)")));
+        assertEquals(18.0, spreadsheet.evaluateCell("AZ1"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testAggregatesReadNumbersFromColumnarBlocks() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        for (int row = 0; row < 200; row++) {
+            spreadsheet.setCellContent(new Coordinate(row, 0), new NumericContent(row + 1));
+        }
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=SUMA(A1:A200)")));
+        spreadsheet.setCellContent("B2", new FormulaContent(FormulaParser.parse("=MIN(A2:A150)")));
+        spreadsheet.setCellContent("B3", new FormulaContent(FormulaParser.parse("=MAX(A1:A199)")));
+        spreadsheet.setCellContent("B4", new FormulaContent(FormulaParser.parse("=PROMEDIO(A1:A200)")));
+        assertEquals(20100.0, spreadsheet.evaluateCell("B1"));
+        assertEquals(2.0, spreadsheet.evaluateCell("B2"));
+        assertEquals(199.0, spreadsheet.evaluateCell("B3"));
+        assertEquals(100.5, spreadsheet.evaluateCell("B4"));
+
+        // A number replaced by a formula is read through its cell, by text it is an error again
+        spreadsheet.setCellContent("A100", new FormulaContent(FormulaParser.parse("=A1-1000")));
+        assertEquals(20100.0 - 100 - 999, spreadsheet.evaluateCell("B1"));
+        assertEquals(-999.0, spreadsheet.evaluateCell("B2"));
+        spreadsheet.setCellContent("A100", new TextContent("text"));
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.evaluateCell("B1"));
+        spreadsheet.setCellContent("A100", new NumericContent(100));
+        assertEquals(20100.0, spreadsheet.evaluateCell("B1"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testRangeAggregatesFollowEditsIncrementally() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        for (int row = 0; row < 10000; row++) {
+            spreadsheet.setCellContent(new Coordinate(row, 0), new NumericContent(row % 100));
+        }
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=SUMA(A1:A10000)")));
+        spreadsheet.setCellContent("B2", new FormulaContent(FormulaParser.parse("=PROMEDIO(A1:A10000)")));
+        spreadsheet.setCellContent("B3", new FormulaContent(FormulaParser.parse("=MIN(A1:A10000)")));
+        spreadsheet.setCellContent("B4", new FormulaContent(FormulaParser.parse("=MAX(A1:A10000)")));
+        assertEquals(495000.0, spreadsheet.evaluateCell("B1"));
+        assertEquals(49.5, spreadsheet.evaluateCell("B2"));
+
+        spreadsheet.setCellContent("A5000", new NumericContent(-5));
+        assertEquals(495000.0 - 99 - 5, spreadsheet.evaluateCell("B1"));
+        assertEquals(-5.0, spreadsheet.evaluateCell("B3"));
+        for (int row = 99; row < 10000; row += 100) {
+            spreadsheet.setCellContent(new Coordinate(row, 0), new NumericContent(0));
+        }
+        assertEquals(98.0, spreadsheet.evaluateCell("B4"));
+
+        // Text and formulas inside the range behave as they do without the running aggregates
+        spreadsheet.setCellContent("A7", new TextContent("text"));
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.evaluateCell("B1"));
+        spreadsheet.setCellContent("A7", new NumericContent(6));
+        spreadsheet.setCellContent("A8", new FormulaContent(FormulaParser.parse("=A7+1000")));
+        assertEquals(1006.0, spreadsheet.evaluateCell("B4"));
+        spreadsheet.setCellContent("A7", new NumericContent(7));
+        assertEquals(1007.0, spreadsheet.evaluateCell("B4"));
+        double sum = spreadsheet.evaluateCell("B1");
+
+        // Compensated deltas do not drift over many edits of one member
+        for (int i = 1; i <= 1000; i++) {
+            spreadsheet.setCellContent("A9", new NumericContent(i * 0.1));
+        }
+        spreadsheet.setCellContent("A9", new NumericContent(8));
+        assertEquals(sum, spreadsheet.evaluateCell("B1"));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testBatchEditRecalculatesOnceAndRollsBack() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("C1", new FormulaContent(FormulaParser.parse("=A1+B1")));
+        spreadsheet.setCellContent("C2", new FormulaContent(FormulaParser.parse("=SUMA(A1:B2)")));
+
+        Map<Coordinate, Content> edits = new LinkedHashMap<>();
+        edits.put(Coordinate.parse("A1"), new NumericContent(1));
+        edits.put(Coordinate.parse("B1"), new NumericContent(2));
+        edits.put(Coordinate.parse("A2"), new NumericContent(3));
+        edits.put(Coordinate.parse("D1"), new FormulaContent(FormulaParser.parse("=C1*C2")));
+        spreadsheet.setCellContents(edits);
+        // C1, C2 and D1 are each evaluated once for the whole batch
+        assertEquals(3, spreadsheet.getLastRecalculationCount());
+        assertEquals(18.0, spreadsheet.evaluateCell("D1"));
+        String formula = spreadsheet.getCell("D1").getContentString();
+
+        Map<Coordinate, Content> failing = new LinkedHashMap<>();
+        failing.put(Coordinate.parse("A1"), new NumericContent(10));
+        failing.put(Coordinate.parse("D1"), new TextContent("replaced"));
+        failing.put(Coordinate.parse("B2"), new Content() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException("Broken content");
+            }
+        });
+        assertThrows(IllegalStateException.class, () -> spreadsheet.setCellContents(failing));
+        assertEquals(1.0, spreadsheet.evaluateCell("A1"));
+        assertEquals(formula, spreadsheet.getCell("D1").getContentString());
+        assertEquals(18.0, spreadsheet.evaluateCell("D1"));
+        assertEquals(6.0, spreadsheet.evaluateCell("C2"));
+        assertTrue(spreadsheet.getCell("B2").isEmpty());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testLazyRecalculationEvaluatesOnlyWhatIsAskedFor() throws Exception {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setRecalculationMode(RecalculationMode.LAZY);
+        spreadsheet.setCellContent("A1", new NumericContent(1));
+        for (int row = 2; row <= 20000; row++) {
+            spreadsheet.setCellContent("A" + row, new FormulaContent(FormulaParser.parse("=A" + (row - 1) + "+1")));
+        }
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=SUMA(A1:A3)")));
+        assertEquals(0, spreadsheet.getLastRecalculationCount());
+        assertEquals(Cell.ValueState.PENDING, spreadsheet.getCell("A20000").getState());
+
+        // Only the requested cell and the dirty formulas it reads are evaluated, without deep recursion
+        assertEquals(6.0, spreadsheet.evaluateCell("B1"));
+        assertEquals(Cell.ValueState.PENDING, spreadsheet.getCell("A4").getState());
+        assertEquals(20000.0, spreadsheet.evaluateCell("A20000"));
+
+        spreadsheet.setCellContent("A1", new NumericContent(11));
+        assertEquals(Cell.ValueState.PENDING, spreadsheet.getCell("A2").getState());
+        assertEquals(Cell.ValueState.PENDING, spreadsheet.getCell("B1").getState());
+        assertEquals(13.0, spreadsheet.evaluateCell("A3"));
+        assertEquals(Cell.ValueState.PENDING, spreadsheet.getCell("A4").getState());
+
+        // A save asks for every value
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("lazy", SpreadsheetFileManager.BINARY_EXTENSION);
+        try {
+            SpreadsheetFileManager.saveSpreadsheet(spreadsheet, file.toString());
+            assertEquals(Cell.ValueState.NUMBER, spreadsheet.getCell("A4").getState());
+            assertEquals(36.0, SpreadsheetFileManager.loadSpreadsheet(file.toString()).evaluateCell("B1"));
+        } finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+
+        spreadsheet.setCellContent("A1", new NumericContent(0));
+        spreadsheet.setRecalculationMode(RecalculationMode.EAGER);
+        assertEquals("19999.0", spreadsheet.getCell("A20000").getDisplayValue());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testIndirectCyclesMarkEveryMember() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("B1", new NumericContent(0));
+        spreadsheet.setCellContent("A1", new FormulaContent(FormulaParser.parse("=B1+1")));
+        spreadsheet.setCellContent("C1", new FormulaContent(FormulaParser.parse("=A1*2")));
+        spreadsheet.setCellContent("D1", new FormulaContent(FormulaParser.parse("=D1+1")));
+        assertEquals("2.0", spreadsheet.getCell("C1").getDisplayValue());
+        assertEquals("#ERROR_CIRCULAR_REFERENCE", spreadsheet.getCell("D1").getDisplayValue());
+
+        // Closing A1 -> B1 -> A1 marks both members; C1 only reads the cycle and gets its error
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=SUMA(A1:A2)")));
+        assertEquals("#ERROR_CIRCULAR_REFERENCE", spreadsheet.getCell("A1").getDisplayValue());
+        assertEquals("#ERROR_CIRCULAR_REFERENCE", spreadsheet.getCell("B1").getDisplayValue());
+        assertEquals("#ERROR_CIRCULAR_REFERENCE", spreadsheet.getCell("C1").getDisplayValue());
+
+        spreadsheet.setCellContent("B1", new NumericContent(4));
+        assertEquals(10.0, spreadsheet.evaluateCell("C1"));
+
+        // A long cycle is found without deep recursion
+        Spreadsheet chain = new Spreadsheet();
+        Map<Coordinate, Content> edits = new LinkedHashMap<>();
+        for (int row = 1; row <= 50000; row++) {
+            edits.put(new Coordinate(row - 1, 0), new FormulaContent(FormulaParser.parse("=A" + (row % 50000 + 1))));
+        }
+        chain.setCellContents(edits);
+        assertEquals("#ERROR_CIRCULAR_REFERENCE", chain.getCell("A1").getDisplayValue());
+        assertEquals("#ERROR_CIRCULAR_REFERENCE", chain.getCell("A25000").getDisplayValue());
+    }
+
+    @org.junit.jupiter.api.Test
+    void testSnapshotsAreUnaffectedByLaterEdits() throws Exception {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A1", new NumericContent(1));
+        spreadsheet.setCellContent("B1", new FormulaContent(FormulaParser.parse("=A1*10")));
+        spreadsheet.setCellContent("C1", new TextContent("kept"));
+        SpreadsheetSnapshot before = spreadsheet.snapshot();
+        assertSame(before, spreadsheet.snapshot()); // Nothing changed in between
+
+        spreadsheet.setCellContent("A1", new NumericContent(2));
+        spreadsheet.setCellContent("C1", new TextContent("replaced"));
+        spreadsheet.setCellContent("D5", new NumericContent(3));
+        SpreadsheetSnapshot after = spreadsheet.snapshot();
+        assertEquals(4, before.getCopiedCellCount()); // Only A1, B1, C1 and D5 were copied, on their first change
+        assertEquals(0, after.getCopiedCellCount());
+
+        assertEquals("10.0", before.getDisplayValue(Coordinate.parse("B1")));
+        assertEquals("kept", before.getContentString(Coordinate.parse("C1")));
+        assertEquals("", before.getDisplayValue(Coordinate.parse("D5")));
+        assertEquals(1, before.getRowCount());
+        assertEquals("20.0", after.getDisplayValue(Coordinate.parse("B1")));
+        assertEquals("replaced", after.getContentString(Coordinate.parse("C1")));
+        assertEquals(5, after.getRowCount());
+
+        // Saving a snapshot writes the sheet as it was, whatever happened to it since
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("snapshot", SpreadsheetFileManager.BINARY_EXTENSION);
+        try {
+            SpreadsheetFileManager.saveSnapshot(before, file.toString());
+            Spreadsheet loaded = SpreadsheetFileManager.loadSpreadsheet(file.toString());
+            assertEquals(10.0, loaded.evaluateCell("B1"));
+            assertEquals("kept", loaded.getCell("C1").getContentString());
+            assertEquals(3, loaded.getStoredCellCount()); // D5 came later
+        } finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+
+        // Many versions share everything but the changed cells
+        Spreadsheet large = new Spreadsheet();
+        Map<Coordinate, Content> edits = new LinkedHashMap<>();
+        for (int row = 0; row < 100000; row++) {
+            edits.put(new Coordinate(row, 0), new NumericContent(row));
+        }
+        large.setCellContents(edits);
+        SpreadsheetSnapshot[] versions = new SpreadsheetSnapshot[1000];
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = large.snapshot();
+            large.setCellContent(new Coordinate(i, 0), new NumericContent(-i));
+        }
+        assertEquals("999.0", versions[999].getDisplayValue(new Coordinate(999, 0)));
+        assertEquals("-998.0", versions[999].getDisplayValue(new Coordinate(998, 0)));
+        assertEquals("500.0", versions[0].getDisplayValue(new Coordinate(500, 0)));
+    }
+
+    @org.junit.jupiter.api.Test
+    void testPagedStorageKeepsOnlyHotBlocksInMemory() throws Exception {
+        java.nio.file.Path pageFile = java.nio.file.Files.createTempFile("pages", ".bin");
+        try {
+            int rows = 100000;
+            Spreadsheet spreadsheet = Spreadsheet.paged(pageFile, 8);
+            PagedCellStore store = (PagedCellStore) spreadsheet.getCellStore();
+            for (int row = 0; row < rows; row++) {
+                spreadsheet.setCellContent(new Coordinate(row, 0), new NumericContent(row % 100));
+            }
+            // One column fills one block column; all but the cached blocks went out to the page file
+            int blocks = (rows + CellStore.BLOCK_ROWS - 1) / CellStore.BLOCK_ROWS;
+            assertEquals(blocks, store.getBlockCount());
+            assertEquals(8, store.getResidentBlockCount());
+            assertTrue(java.nio.file.Files.size(pageFile) > 0);
+
+            // Reading a paged-out block brings it back in and evicts another, the count stays the same
+            assertEquals("5.0", spreadsheet.getCell("A6").getDisplayValue());
+            assertEquals("99.0", spreadsheet.getCell(new Coordinate(rows / 2 - 1, 0)).getDisplayValue());
+            assertEquals(8, store.getResidentBlockCount());
+            assertEquals(blocks, store.getBlockCount());
+
+            // Formulas and the cells they reference stay in memory, scans page the numbers in and out
+            spreadsheet.setCellContent("C1", new FormulaContent(FormulaParser.parse("=SUMA(A1:A100000)")));
+            spreadsheet.setCellContent("C2", new FormulaContent(FormulaParser.parse("=MAX(A1:A100000)+A99999")));
+            assertEquals(4950000.0, spreadsheet.evaluateCell("C1"));
+            assertEquals(197.0, spreadsheet.evaluateCell("C2"));
+            assertTrue(store.getResidentBlockCount() <= 10);
+
+            spreadsheet.setCellContent("A3", new NumericContent(1000));
+            spreadsheet.setCellContent("A99999", new NumericContent(-1));
+            assertEquals(4950899.0, spreadsheet.evaluateCell("C1"));
+            assertEquals(999.0, spreadsheet.evaluateCell("C2"));
+            assertEquals("1000.0", spreadsheet.getCell("A3").getDisplayValue());
+            assertEquals("42.0", spreadsheet.snapshot().getDisplayValue(Coordinate.parse("A43")));
+            assertTrue(store.getResidentBlockCount() <= 10);
+
+            // Full saves stream the store block by block instead of copying it to the heap
+            for (String extension : new String[]{SpreadsheetFileManager.BINARY_EXTENSION, SpreadsheetFileManager.INDEXED_EXTENSION}) {
+                java.nio.file.Path file = java.nio.file.Files.createTempFile("paged", extension);
+                try {
+                    SpreadsheetFileManager.saveSpreadsheet(spreadsheet, file.toString());
+                    assertTrue(store.getResidentBlockCount() <= 10);
+                    Spreadsheet loaded = SpreadsheetFileManager.loadSpreadsheet(file.toString());
+                    assertEquals(4950899.0, loaded.evaluateCell("C1"));
+                    assertEquals(100000, loaded.getRowCount());
+                } finally {
+                    java.nio.file.Files.deleteIfExists(file);
+                }
+            }
+        } finally {
+            java.nio.file.Files.deleteIfExists(pageFile);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void testIndexedSavePatchesOnlyChangedBlocks() throws Exception {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        Map<Coordinate, Content> edits = new LinkedHashMap<>();
+        for (int row = 0; row < 20000; row++) {
+            for (int col = 0; col < 4; col++) {
+                edits.put(new Coordinate(row, col), new NumericContent(row + col));
+            }
+        }
+        edits.put(Coordinate.parse("F1"), new FormulaContent(FormulaParser.parse("=SUMA(A1:A20000)")));
+        edits.put(Coordinate.parse("F2"), new TextContent("label"));
+        spreadsheet.setCellContents(edits);
+
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("indexed", SpreadsheetFileManager.INDEXED_EXTENSION);
+        try {
+            SpreadsheetFileManager.saveSpreadsheet(spreadsheet, file.toString());
+            byte[] full = java.nio.file.Files.readAllBytes(file);
+
+            // One edit writes its own block, the block of the formula reading it and the index past the end,
+            // and the header is the only part of the previous save that changes
+            spreadsheet.setCellContent("C10000", new NumericContent(-1));
+            SpreadsheetFileManager.saveSpreadsheet(spreadsheet, file.toString());
+            byte[] patched = java.nio.file.Files.readAllBytes(file);
+            assertTrue(patched.length > full.length && patched.length < full.length + full.length / 10,
+                    "Patched size: " + patched.length);
+            for (int i = 24; i < full.length; i++) {
+                assertEquals(full[i], patched[i], "Byte " + i);
+            }
+
+            // Cut off before its header was written, the patch leaves the previous save whole
+            byte[] crashed = patched.clone();
+            System.arraycopy(full, 0, crashed, 0, 24);
+            java.nio.file.Path crashedFile = java.nio.file.Files.createTempFile("crashed", SpreadsheetFileManager.INDEXED_EXTENSION);
+            try {
+                java.nio.file.Files.write(crashedFile, crashed);
+                assertEquals(10001.0, SpreadsheetFileManager.loadSpreadsheet(crashedFile.toString()).evaluateCell("C10000"));
+
+                // An entry count the file cannot hold is rejected, not read
+                java.nio.ByteBuffer.wrap(crashed).putInt(20, Integer.MAX_VALUE);
+                java.nio.file.Files.write(crashedFile, crashed);
+                assertThrows(java.io.IOException.class, () -> SpreadsheetFileManager.loadSpreadsheet(crashedFile.toString()));
+            } finally {
+                java.nio.file.Files.deleteIfExists(crashedFile);
+            }
+
+            // The next patch of the same blocks reuses the slots the first one left, the file stays the size it was
+            spreadsheet.setCellContent("C10000", new NumericContent(-1.5));
+            SpreadsheetFileManager.saveSpreadsheet(spreadsheet, file.toString());
+            assertEquals(patched.length, java.nio.file.Files.size(file));
+            spreadsheet.setCellContent("C10000", new NumericContent(-1));
+
+            // New blocks and grown records go to the end of the file
+            spreadsheet.setCellContent("Z50000", new TextContent("far away"));
+            spreadsheet.setCellContent("F2", new TextContent("a label that no longer fits in the slot ".repeat(4)));
+            SpreadsheetFileManager.saveSpreadsheet(spreadsheet, file.toString());
+            assertTrue(java.nio.file.Files.size(file) > full.length);
+
+            Spreadsheet loaded = SpreadsheetFileManager.loadSpreadsheet(file.toString());
+            assertEquals(199990000.0, loaded.evaluateCell("F1"));
+            assertEquals(10002.0, loaded.evaluateCell("D10000"));
+            assertEquals(-1.0, loaded.evaluateCell("C10000"));
+            assertEquals("far away", loaded.getCell("Z50000").getContentString());
+            assertEquals(spreadsheet.getCell("F2").getContentString(), loaded.getCell("F2").getContentString());
+
+            // The loaded sheet goes on saving incrementally to the file it came from
+            loaded.setCellContent("A1", new NumericContent(1));
+            SpreadsheetFileManager.saveSpreadsheet(loaded, file.toString());
+            assertEquals(199990001.0, SpreadsheetFileManager.loadSpreadsheet(file.toString()).evaluateCell("F1"));
+        } finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void testIndexedSaveKeepsEveryFormula() throws Exception {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A1", new NumericContent(4));
+        spreadsheet.setCellContent("B1", new NumericContent(6));
+        spreadsheet.setCellContent("C1", spreadsheet.parseFormula("=SUMA(A1;B1)", "C1"));
+        spreadsheet.setCellContent("C2", spreadsheet.parseFormula("=MAX(A1;B1;2)+MIN(A1;B1)", "C2"));
+        spreadsheet.setCellContent("C3", spreadsheet.parseFormula("=PROMEDIO(A1;B1;C1)", "C3"));
+        // Literals without source text that parses back to them
+        spreadsheet.setCellContent("D1", spreadsheet.parseFormula("=1e400", "D1"));
+        spreadsheet.setCellContent("D2", spreadsheet.parseFormula("=1e10*A1", "D2"));
+        spreadsheet.setCellContent("D3", spreadsheet.parseFormula("=B1*2", "D3"));
+        spreadsheet.getCell("D3").setError(null); // An error that came without a message
+
+        java.nio.file.Path file = java.nio.file.Files.createTempFile("functions", SpreadsheetFileManager.INDEXED_EXTENSION);
+        try {
+            SpreadsheetFileManager.saveSpreadsheet(spreadsheet, file.toString());
+            Spreadsheet loaded = SpreadsheetFileManager.loadSpreadsheet(file.toString());
+            assertEquals(10.0, loaded.evaluateCell("C1"));
+            assertEquals(10.0, loaded.evaluateCell("C2"));
+            assertEquals(20.0 / 3, loaded.evaluateCell("C3"));
+            assertEquals("=SUMA(A1, B1)", loaded.getCell("C1").getContentString());
+            assertEquals(Double.POSITIVE_INFINITY, loaded.evaluateCell("D1"));
+            assertEquals(4e10, loaded.evaluateCell("D2"));
+            assertEquals(Cell.ValueState.ERROR, loaded.getCell("D3").getState());
+            assertNull(loaded.getCell("D3").getError());
+
+            // Patched blocks go through the same encoding
+            spreadsheet.setCellContent("A1", new NumericContent(8));
+            SpreadsheetFileManager.saveSpreadsheet(spreadsheet, file.toString());
+            loaded = SpreadsheetFileManager.loadSpreadsheet(file.toString());
+            assertEquals(14.0, loaded.evaluateCell("C1"));
+            assertEquals(14.0, loaded.evaluateCell("C2"));
+            assertEquals(28.0 / 3, loaded.evaluateCell("C3"));
+            assertEquals(Double.POSITIVE_INFINITY, loaded.evaluateCell("D1"));
+            assertEquals(8e10, loaded.evaluateCell("D2"));
+        } finally {
+            java.nio.file.Files.deleteIfExists(file);
+        }
+    }
+}